@@ -0,0 +1,368 @@
+///usr/bin/env jbang "$0" "$@" ; exit $?
+//DEPS org.openjdk.jmh:jmh-core:1.37
+//DEPS org.openjdk.jmh:jmh-generator-annprocess:1.37
+//DEPS org.apache.commons:commons-compress:1.21
+//DEPS info.picocli:picocli:4.7.5
+//DEPS com.google.code.gson:gson:2.10.1
+//DEPS com.github.luben:zstd-jni:1.5.5-11
+//DEPS org.tukaani:xz:1.9
+//SOURCES ../jpaxa.java
+//JAVA 17+
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * JMH benchmarks for the packaging hot paths, run against synthetic application trees so they work offline:
+ * <pre>
+ * jbang bench/JpaxaBenchmark.java                                   # everything
+ * jbang bench/JpaxaBenchmark.java Archive -p shape=small-files      # a JMH regexp and parameters
+ * jbang bench/JpaxaBenchmark.java -rf json -rff results.json        # results to compare across releases
+ * </pre>
+ * The trees are generated from a fixed seed, so every run and every release measures the same bytes.
+ */
+public class JpaxaBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        org.openjdk.jmh.Main.main(args);
+    }
+
+    static final String[] WORDS = {
+        "function", "return", "const", "module", "exports", "require", "undefined", "this", "value", "length",
+        "prototype", "callback", "object", "string", "number", "error", "result", "options", "index", "default"
+    };
+
+    /** Writes a file of roughly size bytes: source-like text that compresses well, or random bytes that don't. */
+    static void writeFile(Path file, int size, boolean compressible, Random random) throws IOException {
+        Files.createDirectories(file.getParent());
+        byte[] data = new byte[size];
+        if (compressible) {
+            StringBuilder text = new StringBuilder(size + 16);
+            while (text.length() < size) {
+                text.append(WORDS[random.nextInt(WORDS.length)]).append(random.nextInt(8) == 0 ? ";\n" : " ");
+            }
+            System.arraycopy(text.toString().getBytes(StandardCharsets.US_ASCII), 0, data, 0, size);
+        } else {
+            random.nextBytes(data);
+        }
+        Files.write(file, data);
+    }
+
+    static void deleteTree(Path root) throws IOException {
+        if (root == null || !Files.exists(root)) {
+            return;
+        }
+        Files.walkFileTree(root, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    /**
+     * A synthetic application:
+     * small-files is shaped like node_modules (10,000 files of 200 B to 4 KiB),
+     * huge-files like a lib directory of a few large, already compressed jars (3 x 32 MiB),
+     * deep like generated sources (50 chains of 30 nested directories, with paths longer than the 100 bytes of plain tar).
+     */
+    @State(Scope.Benchmark)
+    public static class AppTree {
+        @Param({"small-files", "huge-files", "deep"})
+        public String shape;
+
+        Path root;
+
+        @Setup(Level.Trial)
+        public void create() throws IOException {
+            root = Files.createTempDirectory("jpaxa-bench-app-");
+            Random random = new Random(42);
+            switch (shape) {
+                case "small-files" -> {
+                    for (int pkg = 0; pkg < 200; pkg++) {
+                        Path dir = root.resolve("node_modules/package-" + pkg);
+                        writeFile(dir.resolve("package.json"), 400, true, random);
+                        writeFile(dir.resolve("README.md"), 2000, true, random);
+                        for (int file = 0; file < 48; file++) {
+                            writeFile(dir.resolve("lib/module-" + file + ".js"), 200 + random.nextInt(3900), true, random);
+                        }
+                    }
+                }
+                case "huge-files" -> {
+                    for (int jar = 0; jar < 3; jar++) {
+                        writeFile(root.resolve("lib/library-" + jar + ".jar"), 32 << 20, false, random);
+                    }
+                    writeFile(root.resolve("bin/launcher"), 4000, true, random);
+                }
+                case "deep" -> {
+                    for (int chain = 0; chain < 50; chain++) {
+                        Path dir = root.resolve("src");
+                        for (int depth = 0; depth < 30; depth++) {
+                            dir = dir.resolve("level" + depth + "-chain" + chain);
+                            writeFile(dir.resolve("Generated" + depth + ".java"), 1000 + random.nextInt(1000), true, random);
+                            writeFile(dir.resolve("resource" + depth + ".properties"), 300, true, random);
+                        }
+                    }
+                }
+                default -> throw new IllegalArgumentException("Unknown shape: " + shape);
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void delete() throws IOException {
+            deleteTree(root);
+        }
+    }
+
+    /** Tar and compress a whole tree, the step that dominates most builds. */
+    @State(Scope.Benchmark)
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 2)
+    @Measurement(iterations = 5)
+    @Fork(1)
+    public static class Archive {
+        @Param({"gzip", "zstd", "none"})
+        public String compression;
+
+        @Param({"1", "4"})
+        public int threads;
+
+        Path output;
+
+        @Setup(Level.Trial)
+        public void setup() throws IOException {
+            output = Files.createTempFile("jpaxa-bench-", ".archive");
+        }
+
+        @Setup(Level.Invocation)
+        public void truncate() throws IOException {
+            // appendTarball appends to its output
+            Files.write(output, new byte[0]);
+        }
+
+        @TearDown(Level.Trial)
+        public void delete() throws IOException {
+            Files.deleteIfExists(output);
+        }
+
+        @Benchmark
+        public Object archive(AppTree tree) throws Exception {
+            return new jpaxa().appendTarball(jpaxa.collectEntries(tree.root, jpaxa.ExcludeMatcher.NONE, jpaxa.SymlinkPolicy.FOLLOW), output,
+                jpaxa.Compression.fromId(compression), null, threads, false, false);
+        }
+    }
+
+    /** Walking the input with and without .gitignore style excludes, to isolate the cost of matching. */
+    @State(Scope.Benchmark)
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 3)
+    @Measurement(iterations = 5)
+    @Fork(1)
+    public static class Excludes {
+        static final List<String> PATTERNS = List.of("*.md", "test/", "**/docs/**", "*.map", "!important.md", "/build", "*.d.ts");
+
+        @Benchmark
+        public List<jpaxa.TreeEntry> walk(AppTree tree) throws IOException {
+            return jpaxa.collectEntries(tree.root, jpaxa.ExcludeMatcher.NONE, jpaxa.SymlinkPolicy.FOLLOW);
+        }
+
+        @Benchmark
+        public List<jpaxa.TreeEntry> walkWithExcludes(AppTree tree) throws IOException {
+            return jpaxa.collectEntries(tree.root, jpaxa.ExcludeMatcher.of(tree.root, PATTERNS), jpaxa.SymlinkPolicy.FOLLOW);
+        }
+    }
+
+    /** Copying or hard linking the input into the build directory, done when a prepare command is used. */
+    @State(Scope.Benchmark)
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 2)
+    @Measurement(iterations = 5)
+    @Fork(1)
+    public static class Copy {
+        @Param({"false", "true"})
+        public boolean hardlink;
+
+        Path target;
+
+        @Setup(Level.Invocation)
+        public void setup() throws IOException {
+            target = Files.createTempDirectory("jpaxa-bench-copy-");
+        }
+
+        @TearDown(Level.Invocation)
+        public void delete() throws IOException {
+            deleteTree(target);
+        }
+
+        @Benchmark
+        public void copy(AppTree tree) throws IOException {
+            new jpaxa().copyDirectory(tree.root, target, jpaxa.ExcludeMatcher.NONE, hardlink, jpaxa.SymlinkPolicy.FOLLOW);
+        }
+    }
+
+    /** Locating the parts of a 128 MiB binary: the trailer read, and the backwards separator scan of older binaries. */
+    @State(Scope.Benchmark)
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    @Warmup(iterations = 3)
+    @Measurement(iterations = 5)
+    @Fork(1)
+    public static class Locate {
+        Path withTrailer;
+        Path withoutTrailer;
+
+        @Setup(Level.Trial)
+        public void setup() throws IOException {
+            Random random = new Random(42);
+            byte[] stub = new byte[2 << 20];
+            random.nextBytes(stub);
+            // The scan searches for "\n", keep it out of the archive so the separator search runs over all of it
+            byte[] archive = new byte[128 << 20];
+            random.nextBytes(archive);
+            for (int i = 0; i < archive.length; i++) {
+                if (archive[i] == '\n') {
+                    archive[i] = ' ';
+                }
+            }
+            byte[] footer = "{\"identifier\":\"bench/0123456789abcdef\",\"command\":[\"{{app}}/bin/app\"]}".getBytes(StandardCharsets.UTF_8);
+
+            withoutTrailer = Files.createTempFile("jpaxa-bench-legacy-", "");
+            try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(withoutTrailer))) {
+                out.write(stub);
+                out.write(jpaxa.ARCHIVE_SEPARATOR);
+                out.write(archive);
+                out.write(jpaxa.FOOTER_SEPARATOR);
+                out.write(footer);
+            }
+
+            jpaxa.Trailer trailer = new jpaxa.Trailer();
+            trailer.stubLength = stub.length;
+            trailer.archiveOffset = stub.length;
+            trailer.archiveLength = archive.length;
+            trailer.footerOffset = trailer.archiveOffset + archive.length + jpaxa.FOOTER_SEPARATOR.length;
+            trailer.footerLength = footer.length;
+            withTrailer = Files.createTempFile("jpaxa-bench-trailer-", "");
+            try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(withTrailer))) {
+                out.write(stub);
+                out.write(archive);
+                out.write(jpaxa.FOOTER_SEPARATOR);
+                out.write(footer);
+                out.write(trailer.toBytes());
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void delete() throws IOException {
+            Files.deleteIfExists(withTrailer);
+            Files.deleteIfExists(withoutTrailer);
+        }
+
+        @Benchmark
+        public String trailer() throws IOException {
+            try (FileChannel channel = FileChannel.open(withTrailer)) {
+                return jpaxa.readFooterJson(channel, jpaxa.Trailer.readOrScan(channel));
+            }
+        }
+
+        @Benchmark
+        public String separatorScan() throws IOException {
+            try (FileChannel channel = FileChannel.open(withoutTrailer)) {
+                return jpaxa.readFooterJson(channel, jpaxa.Trailer.readOrScan(channel));
+            }
+        }
+    }
+
+    /** End to end builds of the tree with a synthetic 4 MiB stub, for one variant and for the six released ones. */
+    @State(Scope.Benchmark)
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 2)
+    @Measurement(iterations = 5)
+    @Fork(1)
+    public static class Build {
+        static final List<String> VARIANTS = List.of(
+            "linux-x86_64", "linux-aarch_64", "linux-arm_32", "osx-x86_64", "osx-aarch_64", "windows-x86_64");
+
+        @Param({"1", "6"})
+        public int variants;
+
+        Path stub;
+        Path outputDirectory;
+        PrintStream discard = new PrintStream(OutputStream.nullOutputStream());
+
+        @Setup(Level.Trial)
+        public void setup() throws IOException {
+            stub = Files.createTempFile("jpaxa-bench-stub-", "");
+            writeFile(stub, 4 << 20, false, new Random(42));
+            outputDirectory = Files.createTempDirectory("jpaxa-bench-build-");
+        }
+
+        @TearDown(Level.Trial)
+        public void delete() throws IOException {
+            Files.deleteIfExists(stub);
+            deleteTree(outputDirectory);
+        }
+
+        @Benchmark
+        public List<Path> build(AppTree tree) throws Exception {
+            jpaxa.BuildOptions options = new jpaxa.BuildOptions();
+            options.input = tree.root;
+            options.output = Path.of("app");
+            options.buildDir = outputDirectory;
+            options.stub = stub;
+            options.variants = VARIANTS.subList(0, variants);
+            options.command = List.of("{{app}}/bin/app");
+            return new jpaxa().build(options, discard);
+        }
+    }
+
+    /** Writing a shell stub: rendering the script and appending an already compressed archive. */
+    @State(Scope.Benchmark)
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 2)
+    @Measurement(iterations = 5)
+    @Fork(1)
+    public static class ShellStub {
+        Path archive;
+        Path output;
+        jpaxa.ArchiveInfo archiveInfo;
+
+        @Setup(Level.Trial)
+        public void setup(AppTree tree) throws Exception {
+            archive = Files.createTempFile("jpaxa-bench-", ".tar.gz");
+            archiveInfo = new jpaxa().appendTarball(jpaxa.collectEntries(tree.root, jpaxa.ExcludeMatcher.NONE, jpaxa.SymlinkPolicy.FOLLOW), archive, jpaxa.Compression.GZIP, null, 1, false, false);
+            output = Files.createTempFile("jpaxa-bench-", ".sh");
+        }
+
+        @TearDown(Level.Trial)
+        public void delete() throws IOException {
+            Files.deleteIfExists(archive);
+            Files.deleteIfExists(output);
+        }
+
+        @Benchmark
+        public void shellStub(Blackhole blackhole) throws Exception {
+            new jpaxa().createShellStub(output, archive, archiveInfo, null, null, List.of("{{app}}/bin/app"));
+            blackhole.consume(output);
+        }
+    }
+}
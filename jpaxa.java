@@ -2,6 +2,8 @@
 //DEPS org.apache.commons:commons-compress:1.21
 //DEPS info.picocli:picocli:4.7.5
 //DEPS com.google.code.gson:gson:2.10.1
+//DEPS com.github.luben:zstd-jni:1.5.5-11
+//DEPS org.tukaani:xz:1.9
 //JAVA 17+
 
 import static java.nio.file.Files.copy;
@@ -13,35 +15,87 @@ import static java.nio.file.Files.writeString;
 import static java.nio.file.attribute.PosixFilePermission.*;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
 import java.nio.file.attribute.PosixFilePermission;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Pattern;
+import java.util.stream.Collectors;
 import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
 import org.apache.commons.compress.archivers.tar.*;
+import org.apache.commons.compress.compressors.gzip.GzipCompressorInputStream;
 import org.apache.commons.compress.compressors.gzip.GzipCompressorOutputStream;
+import org.apache.commons.compress.compressors.gzip.GzipParameters;
+import org.apache.commons.compress.compressors.xz.XZCompressorInputStream;
+import org.apache.commons.compress.compressors.xz.XZCompressorOutputStream;
+import org.apache.commons.compress.compressors.zstandard.ZstdCompressorInputStream;
+import org.apache.commons.compress.utils.BoundedInputStream;
+import org.apache.commons.compress.utils.CountingInputStream;
+import org.apache.commons.compress.utils.CountingOutputStream;
+import org.apache.commons.compress.utils.IOUtils;
+import com.github.luben.zstd.ZstdOutputStream;
 import picocli.CommandLine;
 import picocli.CommandLine.Command;
 import picocli.CommandLine.ExitCode;
 import picocli.CommandLine.Option;
 import picocli.CommandLine.Parameters;
 import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
 
 @Command(
     name = "jpaxa",
     description = "Package applications into executable binaries",
     mixinStandardHelpOptions = true,
-    version = "jpaxa 999-SNAPSHOT"
+    version = "jpaxa 999-SNAPSHOT",
+    subcommands = jpaxa.Cache.class
 )
 public class jpaxa implements Runnable {
     
     private static final Pattern APP_PLACEHOLDER = Pattern.compile("\\{\\{\\s*app\\s*\\}\\}");
-    private static final byte[] ARCHIVE_SEPARATOR = ("\n" + "JPAXA".repeat(3) + "\n").getBytes(StandardCharsets.UTF_8);
-    private static final byte[] FOOTER_SEPARATOR = "\n".getBytes(StandardCharsets.UTF_8);
+    static final byte[] ARCHIVE_SEPARATOR = ("\n" + "JPAXA".repeat(3) + "\n").getBytes(StandardCharsets.UTF_8);
+    static final byte[] FOOTER_SEPARATOR = "\n".getBytes(StandardCharsets.UTF_8);
+    /** Where --java-cds has the JVM keep the class data sharing archive, next to the extracted application. */
+    static final String JAVA_CDS_ARCHIVE = "{{app}}/.jpaxa-cds.jsa";
+    /** Replaced by the launchers with the JVM option that dumps or maps JAVA_CDS_ARCHIVE, see javaCdsCommand. */
+    static final String JAVA_CDS_OPTION = "{{cds}}";
+    private static final Set<String> JAVA_EXECUTABLES = Set.of("java", "java.exe", "javaw", "javaw.exe");
+    private static final Set<String> JBANG_EXECUTABLES = Set.of("jbang", "jbang.cmd", "jbang.exe", "jbang.ps1");
+
+    private final Map<String, Optional<Path>> stubCache = new ConcurrentHashMap<>();
     
     public static void main(String[] args) {
-        int exitCode = new CommandLine(new jpaxa()).execute(args);
+        int exitCode = new CommandLine(new jpaxa()).setCaseInsensitiveEnumValuesAllowed(true).execute(args);
         System.exit(exitCode);
     }
     
@@ -50,7 +104,7 @@ public class jpaxa implements Runnable {
         new CommandLine(this).usage(System.err);
     }
     
-    // Configuration object used during a single build invocation
+    // Parses the build options, the build itself is in build(BuildOptions, PrintStream)
     @Command(
         name = "build",
         description = "Package an application directory into a self-extracting executable",
@@ -70,8 +124,8 @@ public class jpaxa implements Runnable {
                 description = "Overwrite output if it exists. True by default.",
                 defaultValue = "true", fallbackValue = "true")
         boolean force,
-        @Option(names = {"-e", "--exclude"}, paramLabel = "PATH",
-                description = "Paths to exclude from the build")
+        @Option(names = {"-e", "--exclude"}, paramLabel = "PATTERN",
+                description = "Paths to exclude from the build, as .gitignore style patterns. Patterns in a .jpaxaignore file in the input directory are applied as well.")
         List<String> exclude,
         @Option(names = {"-p", "--prepare-command"}, paramLabel = "COMMAND",
                 description = "Command to run on the build directory before packaging")
@@ -79,8 +133,13 @@ public class jpaxa implements Runnable {
         @Option(names = {"-s", "--stub"}, paramLabel = "PATH",
                 description = "Path to the platform specific stubs, if not provided will look up in classpath under /stubs")
         Path stub,
+        @Option(names = {"--hardlink"},
+                description = "Hardlink input files into the build directory instead of copying them when a prepare command is used, "
+                        + "falling back to a copy where the file system doesn't allow it. The prepare command must not modify input files in place.")
+        boolean hardlink,
         @Option(names = {"--identifier"}, paramLabel = "ID",
-                description = "Build identifier, which is part of the path in which the application will be unpacked")
+                description = "Build identifier, which is part of the path in which the application will be unpacked. "
+                        + "Defaults to the output name and a hash of the archived content and command.")
         String identifier,
         @Option(names = {"-B", "--no-remove-build-directory"},
                 description = "Don't remove the build directory after the build")
@@ -91,113 +150,110 @@ public class jpaxa implements Runnable {
         @Option(names = {"--variants"}, paramLabel = "VARIANT",
                 description = "Variants to build; defaults to current platform and architecture if not provided. Use `all` to build all known variants.")
         List<String> variants,
+        @Option(names = {"--compression"}, paramLabel = "CODEC",
+                description = "Compression of the embedded archive: ${COMPLETION-CANDIDATES}. zstd and xz are decoded with the tools of the system, by the shell stub (.sh) only. Defaults to gzip.",
+                defaultValue = "gzip")
+        Compression compression,
+        @Option(names = {"--level"}, paramLabel = "LEVEL",
+                description = "Compression level, the valid range depends on --compression (gzip 0-9, zstd 1-22, xz 0-9)")
+        Integer level,
+        @Option(names = {"--reproducible"},
+                description = "Produce identical bytes for identical inputs: sorted entries, modification times clamped to "
+                        + "SOURCE_DATE_EPOCH (or 1980-01-01 when unset) and no owner information")
+        boolean reproducible,
+        @Option(names = {"--threads"}, paramLabel = "N",
+                description = "Number of threads used to compress the application, defaults to the number of available processors")
+        Integer threads,
+        @Option(names = {"--dedup"},
+                description = "Archive files identical to an earlier one as hard links to it, so their content is compressed and extracted once")
+        boolean dedup,
+        @Option(names = {"--outside-symlinks"}, paramLabel = "POLICY", defaultValue = "follow",
+                description = "What to do with symlinks pointing outside the input: ${COMPLETION-CANDIDATES}. "
+                        + "Defaults to ${DEFAULT-VALUE}.")
+        SymlinkPolicy outsideSymlinks,
+        @Option(names = {"--inside-symlinks"}, paramLabel = "POLICY",
+                description = "What to do with symlinks pointing inside the input: ${COMPLETION-CANDIDATES}. Defaults to follow "
+                        + "for windows-* variants, where creating symlinks takes administrator rights, and to preserve for the others.")
+        SymlinkPolicy insideSymlinks,
+        @Option(names = {"--validate-cache"},
+                description = "Make the launcher check the size and type of every extracted file on each start, and extract again only the missing or damaged ones")
+        boolean validateCache,
+        @Option(names = {"--layout"}, paramLabel = "LAYOUT", defaultValue = "stream",
+                description = "Archive layout: ${COMPLETION-CANDIDATES}. chunked compresses chunks of the application independently, "
+                        + "so launchers extract them on all cores. Defaults to ${DEFAULT-VALUE}.")
+        ArchiveLayout layout,
+        @Option(names = {"--chunk-size"}, paramLabel = "SIZE", defaultValue = "8M",
+                description = "With --layout chunked, the uncompressed size of a chunk, split between files (default: ${DEFAULT-VALUE})")
+        String chunkSize,
+        @Option(names = {"--startup-profile"}, paramLabel = "FILE",
+                description = "The files the application reads at startup, one path per line. They are archived first, in chunks of their own, "
+                        + "and launchers start the command as soon as these are extracted, extracting the rest meanwhile. Implies --layout chunked.")
+        Path startupProfile,
+        @Option(names = {"--repack-jars"},
+                description = "Rewrite the .jar files with stored (uncompressed) entries before archiving, so the archive codec compresses "
+                        + "the classes of all jars together. Entry order, manifests and signatures are kept.")
+        boolean repackJars,
+        @Option(names = {"--java-cds"},
+                description = "The command runs java or jbang: have the JVM create a class data sharing archive in the extraction directory on the first run "
+                        + "and map it on the next ones, so they load classes faster. Needs JDK 13 or later.")
+        boolean javaCds,
+        @Option(names = {"--entry-cache"}, paramLabel = "DIR",
+                description = "Compress every entry on its own and keep it in DIR, so later builds only compress the files that changed. "
+                        + "Faster rebuilds for larger archives, meant for development builds.")
+        Path entryCache,
+        @Option(names = {"--stats"}, paramLabel = "FILE",
+                description = "Write a JSON report with the duration of every build phase, sizes and compression throughput")
+        Path stats,
+        @Option(names = {"--watch"},
+                description = "Keep running and build again whenever a file of the input directory changes")
+        boolean watch,
+        @Option(names = {"--watch-debounce"}, paramLabel = "DURATION", defaultValue = "300ms",
+                description = "With --watch, wait until no file changed for this long before building (default: ${DEFAULT-VALUE})")
+        String watchDebounce,
+        @Option(names = {"--prepare-watch"}, paramLabel = "PATTERN",
+                description = "With --watch, only run the prepare command again when a changed path matches one of these .gitignore style patterns. "
+                        + "By default every change runs it again.")
+        List<String> prepareWatch,
         @Option(names = {"--verbose"}, description = "Verbose output")
         boolean verbose,
         @Parameters(index = "1..*", paramLabel = "COMMAND", description = "The command to run and optional arguments")
         List<String> command
     ) {
+        BuildOptions options = new BuildOptions();
+        options.input = input;
+        options.output = output;
+        options.buildDir = buildDir;
+        options.force = force;
+        options.exclude = exclude;
+        options.prepareCommand = prepareCommand;
+        options.stub = stub;
+        options.hardlink = hardlink;
+        options.identifier = identifier;
+        options.noRemoveBuildDirectory = noRemoveBuildDirectory;
+        options.uncompressionMessage = uncompressionMessage;
+        options.variants = variants;
+        options.compression = compression;
+        options.level = level;
+        options.reproducible = reproducible;
+        options.threads = threads;
+        options.dedup = dedup;
+        options.outsideSymlinks = outsideSymlinks;
+        options.insideSymlinks = insideSymlinks;
+        options.validateCache = validateCache;
+        options.layout = layout;
+        options.chunkSize = Cache.parseSize(chunkSize);
+        options.startupProfile = startupProfile;
+        options.repackJars = repackJars;
+        options.javaCds = javaCds;
+        options.entryCache = entryCache;
+        options.stats = stats;
+        options.verbose = verbose;
+        options.command = command;
         try {
-            List<String> effectiveVariants = variants;
-            if (effectiveVariants == null || effectiveVariants.isEmpty()) {  // If no variants were provided, build the current platform and architecture
-                String stubName = getPlatform() + "-" + getArchitecture();
-                effectiveVariants = Arrays.asList(stubName);
-            } else if (effectiveVariants.contains("all")) { // If --variants was provided with values, build all known variants
-                effectiveVariants = new ArrayList<>(effectiveVariants);
-                effectiveVariants.remove("all");
-                effectiveVariants.addAll(getKnownVariants().keySet());
-            }
-
-            // Validate input
-            if (!exists(input) || !isDirectory(input)) {
-                throw new IllegalArgumentException("Input isn't a directory: " + input);
-            }
-
-            // Validate output
-            String osName = System.getProperty("os.name").toLowerCase();
-            boolean isWindows = osName.contains("win");
-
-            Path effectiveOutput = output;
-            if (effectiveOutput == null) {
-                effectiveOutput = Path.of(input.getFileName().toString());
-            }
-
-            effectiveOutput = buildDir.resolve(effectiveOutput);
-
-            if (exists(effectiveOutput) && !force) {
-                throw new IllegalArgumentException("Output already exists: %s, use --force to overwrite".formatted(effectiveOutput));
-            } else if (!exists(effectiveOutput)) {
-                createDirectories(effectiveOutput.getParent());
-            }
-
-            // Create build directory
-            Path tmpBuildDir = Files.createTempDirectory("jpaxa-");
-            try {
-                // Copy input to build directory
-                copyDirectory(input, tmpBuildDir, exclude != null ? exclude : List.of());
-
-                // Run prepare command if specified
-                if (prepareCommand != null && !prepareCommand.isEmpty()) {
-                    ProcessBuilder pb = new ProcessBuilder();
-                    if (isWindows) {
-                        pb.command("cmd", "/c", prepareCommand);
-                    } else {
-                        pb.command("sh", "-c", prepareCommand);
-                    }
-                    pb.directory(tmpBuildDir.toFile());
-                    Process process = pb.start();
-                    int exitCode = process.waitFor();
-                    if (exitCode != 0) {
-                        throw new RuntimeException("Prepare command failed with exit code: " + exitCode);
-                    }
-                }
-
-                // Handle .app bundle for macOS
-                if (endsWith(effectiveOutput, ".app")) {
-                    if (!osName.contains("mac")) {
-                        throw new IllegalArgumentException("macOS Application Bundles (.app) are supported in macOS only.");
-                    }
-                    createMacAppBundle(effectiveOutput, tmpBuildDir, command != null ? command : List.of(), verbose);
-                    if (verbose) {
-                        System.out.println("Created macOS Application Bundle: " + effectiveOutput);
-                    }
-                    return ExitCode.OK;
-                }
-
-                // Handle .sh shell stub
-                if (endsWith(effectiveOutput, ".sh")) {
-                    if (isWindows) {
-                        throw new IllegalArgumentException("The Shell Stub (.sh) isn't supported in Windows.");
-                    }
-                    createShellStub(effectiveOutput, tmpBuildDir, identifier, uncompressionMessage, command != null ? command : List.of());
-                    if (verbose) {
-                        System.out.println("Created Shell Stub: " + effectiveOutput);
-                    }
-                    return ExitCode.OK;
-                }
-
-                // Binary stubs for variants
-                List<String> cmd = command != null ? command : List.of();
-                for (String variant : effectiveVariants) {
-                    createBinaryStub(
-                        effectiveOutput,
-                        tmpBuildDir,
-                        isWindows,
-                        variant,
-                        stub,
-                        identifier,
-                        force,
-                        verbose,
-                        uncompressionMessage,
-                        cmd
-                    );
-                }
-
-            } finally {
-                if (!noRemoveBuildDirectory) {
-                    deleteDirectory(tmpBuildDir);
-                } else {
-                    System.out.println("Build directory not removed: " + tmpBuildDir);
-                }
+            if (watch) {
+                watch(options, Cache.parseDuration(watchDebounce), prepareWatch != null ? prepareWatch : List.of());
+            } else {
+                build(options, System.out);
             }
             return ExitCode.OK;
         } catch (Exception e) {
@@ -207,344 +263,2818 @@ public class jpaxa implements Runnable {
         }
     }
 
-    private static boolean endsWith(Path path, String suffix) {
-        return path.getFileName().toString().endsWith(suffix);
+    /** Entry point of the embeddable API, see {@link Builder}. */
+    public static Builder builder() {
+        return new Builder();
     }
 
-    private static boolean isWindowsVariantStub(String variant) {
-        // variant is like "windows-x86_64"
-        return variant.startsWith("windows-");
-    }
+    /**
+     * Builds one executable into any OutputStream, e.g. an HTTP upload or an in-memory buffer, without an output file:
+     * <pre>
+     * jpaxa.builder()
+     *     .input(Path.of("my-app"))
+     *     .command("{{app}}/bin/my-app")
+     *     .variant("linux-x86_64")
+     *     .writeTo(upload);
+     * </pre>
+     * The stub is written first, then the input is archived and compressed straight into the sink, and the footer and
+     * trailer, which depend on the archived content, come last. Only {@code layout("chunked")} and {@code repackJars(true)}
+     * stage files, the compressed chunks and the rewritten jars, in temporary directories removed once written.
+     * There is no prepare command: prepare the input before.
+     * A builder can write several executables, stubs are looked up once.
+     */
+    public static final class Builder {
+        private final jpaxa tool = new jpaxa();
+        private Path input;
+        private List<String> command = List.of();
+        private String variant;
+        private Path stub;
+        private String name;
+        private String identifier;
+        private String message;
+        private final List<String> excludes = new ArrayList<>();
+        private Compression compression = Compression.GZIP;
+        private Integer level;
+        private int threads = Runtime.getRuntime().availableProcessors();
+        private boolean reproducible;
+        private boolean dedup;
+        private SymlinkPolicy outsideSymlinks = SymlinkPolicy.FOLLOW;
+        private SymlinkPolicy insideSymlinks;
+        private boolean validateCache;
+        private ArchiveLayout layout = ArchiveLayout.STREAM;
+        private long chunkSize = 8 << 20;
+        private Set<String> startupProfile;
+        private boolean repackJars;
+        private boolean javaCds;
 
-    private static String stripExeSuffix(String path) {
-        return path.endsWith(".exe") ? path.substring(0, path.length() - 4) : path;
-    }
+        private Builder() {
+        }
 
-    private void createBinaryStub(
-        Path outputBase,
-        Path buildDir,
-        boolean isWindows,
-        String variant,
-        Path explicitStub,
-        String explicitIdentifier,
-        boolean force,
-        boolean verbose,
-        String uncompressionMessage,
-        List<String> command
-    ) throws Exception {
+        /** The application directory to package. */
+        public Builder input(Path input) {
+            this.input = input;
+            return this;
+        }
 
-        String baseOutputPath = outputBase.toString();
-        // For Windows variants, ensure the produced filename ends with ".exe" so it is directly runnable on Windows.
-        // We put ".exe" at the end (after the variant suffix), because Windows requires the extension at the end.
-        String outputPath;
-        if (isWindowsVariantStub(variant)) {
-            baseOutputPath = stripExeSuffix(baseOutputPath);
-            outputPath = baseOutputPath + "-" + variant + ".exe";
-        } else {
-            outputPath = baseOutputPath + "-" + variant;
+        /** The command to run and its arguments, {{app}} is replaced by the extraction directory. */
+        public Builder command(String... command) {
+            return command(List.of(command));
         }
-        Path stubPath = explicitStub;
-        if (stubPath == null) {
-            stubPath = findStub(variant);
-            if (stubPath == null) {
-                throw new IllegalArgumentException(
-                    "Stub not found (your operating system / architecture may be unsupported): " + variant +
-                    "\nYou can compile stubs with: go build -o " + variant + " <path-to-stub.go>"
-                );
-            }
+
+        public Builder command(List<String> command) {
+            this.command = List.copyOf(command);
+            return this;
         }
-        
-        // Generate identifier if not provided
-        String identifier = explicitIdentifier;
-        if (identifier == null || identifier.isEmpty()) {
-            String baseName = outputBase.getFileName().toString();
-            baseName = baseName.replaceAll("\\.exe$", "").replaceAll("\\.app$", "").replaceAll("\\.sh$", "");
-            identifier = baseName + "/" + generateRandomString(10);
+
+        /** The platform of the stub, e.g. linux-x86_64. Defaults to the current platform. */
+        public Builder variant(String variant) {
+            this.variant = variant;
+            return this;
         }
-        
-        if (Files.exists(Path.of(outputPath)) && !force) {
-            throw new IllegalArgumentException("Output already exists: %s, use --force to overwrite".formatted(outputPath));
+
+        /** A stub file to use instead of looking it up for the variant. */
+        public Builder stub(Path stub) {
+            this.stub = stub;
+            return this;
         }
-        if (verbose) {
-            System.out.println("Copying stub to output: " + stubPath + " -> " + outputPath);
+
+        /** The name the default identifier starts with, defaults to the name of the input directory. */
+        public Builder name(String name) {
+            this.name = name;
+            return this;
         }
-        // Copy stub to output
-        copy(stubPath, new File(outputPath).toPath(), StandardCopyOption.REPLACE_EXISTING);
-        
-        // Make executable on Unix
-        if (!isWindows) {
-            try {
-                Set<PosixFilePermission> perms = Files.getPosixFilePermissions(new File(outputPath).toPath());
-                perms.add(PosixFilePermission.OWNER_EXECUTE);
-                perms.add(PosixFilePermission.GROUP_EXECUTE);
-                perms.add(PosixFilePermission.OTHERS_EXECUTE);
-                Files.setPosixFilePermissions(new File(outputPath).toPath(), perms);
-            } catch (UnsupportedOperationException e) {
-                // Windows doesn't support PosixFilePermission
+
+        public Builder identifier(String identifier) {
+            this.identifier = identifier;
+            return this;
+        }
+
+        /** A message the launcher shows while extracting. */
+        public Builder message(String message) {
+            this.message = message;
+            return this;
+        }
+
+        /** .gitignore style patterns of paths to leave out, added to those of a .jpaxaignore file in the input. */
+        public Builder exclude(String... patterns) {
+            excludes.addAll(List.of(patterns));
+            return this;
+        }
+
+        /** gzip (the default) or none, the codecs the launchers of the binaries decode. */
+        public Builder compression(String codec) {
+            this.compression = Compression.fromId(codec);
+            return this;
+        }
+
+        public Builder level(int level) {
+            this.level = level;
+            return this;
+        }
+
+        /** Threads used to compress, defaults to the number of available processors. */
+        public Builder threads(int threads) {
+            if (threads < 1) {
+                throw new IllegalArgumentException("threads must be at least 1: " + threads);
             }
+            this.threads = threads;
+            return this;
         }
-        
-        // Append tarball
-        appendTarball(buildDir, new File(outputPath).toPath());
-        
-        // Append footer
-        Map<String, Object> footer = new HashMap<>();
-        footer.put("identifier", identifier);
-        footer.put("command", command);
-        if (uncompressionMessage != null) {
-            footer.put("uncompressionMessage", uncompressionMessage);
-        }   
-        
-        String footerJson = new Gson().toJson(footer);
-        if (verbose) {
-            System.out.println("Footer JSON: " + footerJson);
+
+        public Builder reproducible(boolean reproducible) {
+            this.reproducible = reproducible;
+            return this;
         }
-        writeString(Path.of(outputPath), "\n" + footerJson, StandardOpenOption.APPEND);
 
-        System.out.println("Created binary: " + outputPath);
-    }
-    
-    private void createShellStub(Path output, Path buildDir, String explicitIdentifier, String uncompressionMessage, List<String> command) throws Exception {
-        // Generate identifier if not provided
-        String identifier = explicitIdentifier;
-        if (identifier == null || identifier.isEmpty()) {
-            String baseName = output.getFileName().toString().replaceAll("\\.sh$", "");
-            identifier = baseName + "/" + generateRandomString(10);
+        /** Archive files identical to an earlier one as hard links to it. */
+        public Builder dedup(boolean dedup) {
+            this.dedup = dedup;
+            return this;
         }
-        
-        // Generate shell stub script
-        String stubScript = """
-            #!/usr/bin/env sh
-            export jpaxa_TEMPORARY_DIRECTORY="$(dirname $(mktemp))/jpaxa"
-            export jpaxa_EXTRACTION_ATTEMPT=-1
-            while true
-            do
-              export jpaxa_EXTRACTION_ATTEMPT=$(( jpaxa_EXTRACTION_ATTEMPT + 1 ))
-              export jpaxa_LOCK="$jpaxa_TEMPORARY_DIRECTORY/locks/%s/$jpaxa_EXTRACTION_ATTEMPT"
-              export jpaxa_APPLICATION_DIRECTORY="$jpaxa_TEMPORARY_DIRECTORY/applications/%s/$jpaxa_EXTRACTION_ATTEMPT"
-              if [ -d "$jpaxa_APPLICATION_DIRECTORY" ] 
-              then
-                if [ -d "$jpaxa_LOCK" ] 
-                then
-                  continue
-                else
-                  break
-                fi
-              else
-            """.formatted(identifier, identifier);
-        if (uncompressionMessage != null) {
-            stubScript += "    echo \"%s\" >&2\n".formatted(uncompressionMessage);
+
+        /** What to do with symlinks pointing outside the input: follow (the default), preserve, skip or error. */
+        public Builder outsideSymlinks(String policy) {
+            this.outsideSymlinks = SymlinkPolicy.valueOf(policy.toUpperCase(Locale.ROOT));
+            return this;
         }
-        stubScript += """
-            mkdir -p "$jpaxa_LOCK"
-            mkdir -p "$jpaxa_APPLICATION_DIRECTORY"
-            tail -n+__STUB_LINES__ "$0" | tar -xz -C "$jpaxa_APPLICATION_DIRECTORY"
-            rmdir "$jpaxa_LOCK"
-            break
-          fi
-        done
-        exec""";
 
-        for (String cmdPart : command) {
-            String expanded = APP_PLACEHOLDER.matcher(cmdPart).replaceAll("\"\\$jpaxa_APPLICATION_DIRECTORY\"");
-            stubScript += " \"" + expanded + "\"";
+        /** What to do with symlinks pointing inside the input, defaults to follow for windows-* variants and preserve for the others. */
+        public Builder insideSymlinks(String policy) {
+            this.insideSymlinks = SymlinkPolicy.valueOf(policy.toUpperCase(Locale.ROOT));
+            return this;
         }
-        stubScript += " \"$@\"\n";
 
-        // Use split(..., -1) so trailing empty string is kept (Java drops it by default; jpaxa/JS does not)
-        stubScript = stubScript.replace("__STUB_LINES__", String.valueOf(stubScript.split("\n", -1).length));
+        /** Have the launcher check the extracted files on each start and repair the missing or damaged ones. */
+        public Builder validateCache(boolean validateCache) {
+            this.validateCache = validateCache;
+            return this;
+        }
 
-        writeString(output, stubScript);
-        
-        // Make executable
-        try {
-            var perms = EnumSet.of(
-                OWNER_READ, OWNER_WRITE, OWNER_EXECUTE,
-                GROUP_READ, GROUP_EXECUTE,
-                OTHERS_READ, OTHERS_EXECUTE
-            );
-            Files.setPosixFilePermissions(output, perms);
-        } catch (UnsupportedOperationException e) {
-            // Windows doesn't support PosixFilePermission
+        /** The archive layout, stream (the default) or chunked, extracted in parallel by the launchers. */
+        public Builder layout(String layout) {
+            this.layout = ArchiveLayout.valueOf(layout.toUpperCase(Locale.ROOT));
+            return this;
         }
-        
-        // Append tarball
-        appendTarball(buildDir, output);
-    }
-    
-    private void createMacAppBundle(Path output, Path buildDir, List<String> command, boolean verbose) throws Exception {
-        String name = output.getFileName().toString().replaceAll("\\.app$", "");
-        Path appPath = output;
-        Path contentsPath = appPath.resolve("Contents");
-        Path macosPath = contentsPath.resolve("MacOS");
-        Path resourcesPath = contentsPath.resolve("Resources");
-        
-        createDirectories(macosPath);
-        createDirectories(resourcesPath);
-        
-        // Create MacOS executable
-        String macosScript = "#!/usr/bin/env sh\n" +
-            "open \"$(dirname \"$0\")/../Resources/" + name + "\"\n";
-        Path macosExecutable = macosPath.resolve(name);
-        write(macosExecutable, macosScript.getBytes());
-        try {
-            Set<PosixFilePermission> perms = EnumSet.of(
-                OWNER_READ, PosixFilePermission.OWNER_WRITE, PosixFilePermission.OWNER_EXECUTE,
-                PosixFilePermission.GROUP_READ, PosixFilePermission.GROUP_EXECUTE,
-                PosixFilePermission.OTHERS_READ, PosixFilePermission.OTHERS_EXECUTE
-            );
-            Files.setPosixFilePermissions(macosExecutable, perms);
-        } catch (Exception e) {
-            // Ignore
+
+        /** The uncompressed size of a chunk with the chunked layout. */
+        public Builder chunkSize(long chunkSize) {
+            this.chunkSize = chunkSize;
+            return this;
         }
-        
-        // Create Resources executable
-        StringBuilder resourcesScript = new StringBuilder();
-        resourcesScript.append("#!/usr/bin/env sh\n");
-        for (int i = 0; i < command.size(); i++) {
-            String cmdPart = command.get(i);
-            String expanded = APP_PLACEHOLDER.matcher(cmdPart).replaceAll("\\$(dirname \"\\$0\")/application");
-            if (i > 0) resourcesScript.append(" ");
-            resourcesScript.append("\"").append(expanded).append("\"");
+
+        /** The paths read at startup, relative to the input, archived first so the command starts before the rest is extracted. */
+        public Builder startupProfile(Collection<String> paths) {
+            this.startupProfile = new LinkedHashSet<>(paths);
+            return this;
         }
-        resourcesScript.append("\n");
-        
-        Path resourcesExecutable = resourcesPath.resolve(name);
-        write(resourcesExecutable, resourcesScript.toString().getBytes());
-        try {
-            Set<PosixFilePermission> perms = EnumSet.of(
-                OWNER_READ, PosixFilePermission.OWNER_WRITE, PosixFilePermission.OWNER_EXECUTE,
-                PosixFilePermission.GROUP_READ, PosixFilePermission.GROUP_EXECUTE,
-                PosixFilePermission.OTHERS_READ, PosixFilePermission.OTHERS_EXECUTE
-            );
-            Files.setPosixFilePermissions(resourcesExecutable, perms);
-        } catch (Exception e) {
-            // Ignore
+
+        /** Rewrite the jars with stored entries before archiving, so the archive codec compresses their classes together. */
+        public Builder repackJars(boolean repackJars) {
+            this.repackJars = repackJars;
+            return this;
         }
-        
-        // Move build directory to Resources/application
-        Path applicationPath = resourcesPath.resolve("application");
-        moveDirectory(buildDir, applicationPath);
-    }
-    
-    private void appendTarball(Path buildDir, Path outputPath) throws Exception {
-        try (FileOutputStream fos = new FileOutputStream(outputPath.toFile(), true);
-             BufferedOutputStream bos = new BufferedOutputStream(fos);
-             GzipCompressorOutputStream gzos = new GzipCompressorOutputStream(bos);
-             TarArchiveOutputStream tos = new TarArchiveOutputStream(gzos)) {
-            
-            tos.setLongFileMode(TarArchiveOutputStream.LONGFILE_POSIX);
-            
-            try (Stream<Path> paths = Files.walk(buildDir)) {
-                paths.forEach(source -> {
-                    try {
-                        // Skip the root directory itself
-                        if (source.equals(buildDir)) {
-                            return;
-                        }
-                        
-                        Path target = buildDir.relativize(source);
-                        String targetPath = target.toString().replace('\\', '/');
-                        
-                        // Ensure path doesn't start with / and is not empty
-                        if (targetPath.isEmpty() || targetPath.equals("/")) {
-                            return;
-                        }
-                        
-                        // Create entry with relative path (not absolute)
-                        TarArchiveEntry entry = new TarArchiveEntry(source.toFile(), targetPath);
-                        
-                        if (isDirectory(source)) {
-                            entry.setMode(TarArchiveEntry.DEFAULT_DIR_MODE);
-                        } else {
-                            // Preserve executability: if the source file is executable, mark it as such
-                            if (Files.isExecutable(source)) {
-                                entry.setMode(0755);
-                            } else {
-                                entry.setMode(TarArchiveEntry.DEFAULT_FILE_MODE);
-                            }
-                            entry.setSize(Files.size(source));
-                        }
-                        
-                        tos.putArchiveEntry(entry);
-                        
-                        if (Files.isRegularFile(source)) {
-                            copy(source, tos);
-                        }
-                        
-                        tos.closeArchiveEntry();
-                    } catch (IOException e) {
-                        throw new RuntimeException(e);
-                    }
-                });
-            }
+
+        /** Have the java command create and use a class data sharing archive in the extraction directory. */
+        public Builder javaCds(boolean javaCds) {
+            this.javaCds = javaCds;
+            return this;
         }
-    }
-    
-    private void copyDirectory(Path source, Path target, List<String> excludes) throws IOException {
-        Set<Path> excludePaths = new HashSet<>();
-        for (String excludePattern : excludes) {
-            // Simple glob matching - could be enhanced
-            Path excludePath = source.resolve(excludePattern);
-            if (exists(excludePath)) {
-                excludePaths.add(excludePath);
+
+        /** Writes the executable to out, which is flushed but left open. Returns the number of bytes written. */
+        public long writeTo(OutputStream out) throws IOException {
+            if (input == null || !isDirectory(input)) {
+                throw new IllegalArgumentException("Input isn't a directory: " + input);
             }
-        }
-        
-        Files.walk(source).forEach(sourcePath -> {
+            BuildOptions options = options();
+            compression.validateBinaryStub();
+            checkArchive(options, startupProfile);
+            String effectiveVariant = variant != null ? variant : tool.getPlatform() + "-" + tool.getArchitecture();
+            Path stubPath = stub != null ? stub : tool.findStub(effectiveVariant);
+            if (stubPath == null) {
+                throw new IllegalArgumentException("Stub not found (your operating system / architecture may be unsupported): " + effectiveVariant);
+            }
+
+            CountingOutputStream counter = new CountingOutputStream(out);
+            long stubLength = Files.copy(stubPath, counter);
+            ArchiveInfo archiveInfo;
             try {
-                // Check if path should be excluded
-                boolean shouldExclude = excludePaths.stream().anyMatch(exclude -> 
-                    sourcePath.startsWith(exclude) || sourcePath.equals(exclude)
-                );
-                if (shouldExclude) {
-                    return;
-                }
-                
-                Path targetPath = target.resolve(source.relativize(sourcePath));
-                if (isDirectory(sourcePath)) {
-                    createDirectories(targetPath);
-                } else {
-                    createDirectories(targetPath.getParent());
-                    copy(sourcePath, targetPath, StandardCopyOption.REPLACE_EXISTING);
+                archiveInfo = writeArchive(input, ExcludeMatcher.of(input, excludes), options, jpaxa.insideSymlinks(options, effectiveVariant), startupProfile, counter,
+                    new PrintStream(OutputStream.nullOutputStream()), new LinkedHashMap<>());
+            } catch (RuntimeException e) {
+                // Failures reading the input are wrapped while walking it
+                if (e.getCause() instanceof IOException cause) {
+                    throw cause;
                 }
+                throw e;
             } catch (IOException e) {
-                throw new UncheckedIOException(e);
+                throw e;
+            } catch (Exception e) {
+                throw new IOException(e);
             }
-        });
+            long archiveLength = counter.getBytesWritten() - stubLength;
+
+            String baseName = name != null ? name : input.toAbsolutePath().normalize().getFileName().toString();
+            writeFooter(counter, stubLength, archiveLength, archiveInfo, effectiveIdentifier(options, baseName, archiveInfo), options);
+            counter.flush();
+            return counter.getBytesWritten();
+        }
+
+        /** The build options of the builder, for the steps it shares with `build`. The startup profile is passed on its own. */
+        private BuildOptions options() {
+            BuildOptions options = new BuildOptions();
+            options.input = input;
+            options.command = command;
+            options.stub = stub;
+            options.identifier = identifier;
+            options.uncompressionMessage = message;
+            options.exclude = excludes;
+            options.compression = compression;
+            options.level = level;
+            options.threads = threads;
+            options.reproducible = reproducible;
+            options.dedup = dedup;
+            options.outsideSymlinks = outsideSymlinks;
+            options.insideSymlinks = insideSymlinks;
+            options.validateCache = validateCache;
+            options.layout = layout;
+            options.chunkSize = chunkSize;
+            options.repackJars = repackJars;
+            options.javaCds = javaCds;
+            return options;
+        }
     }
-    
-    private void moveDirectory(Path source, Path target) throws IOException {
-        if (exists(target)) {
-            deleteDirectory(target);
+
+    /** Everything a single build needs, filled from the build options or from an entry of a build-all manifest. */
+    static class BuildOptions {
+        Path input;
+        Path output;
+        Path buildDir = Path.of("build/jpaxa-output");
+        boolean force = true;
+        List<String> exclude;
+        String prepareCommand;
+        Path stub;
+        boolean hardlink;
+        String identifier;
+        boolean noRemoveBuildDirectory;
+        String uncompressionMessage;
+        List<String> variants;
+        Compression compression = Compression.GZIP;
+        Integer level;
+        boolean reproducible;
+        Integer threads;
+        boolean dedup;
+        SymlinkPolicy outsideSymlinks = SymlinkPolicy.FOLLOW;
+        /** Null to follow them for windows-* variants and preserve them for the others. */
+        SymlinkPolicy insideSymlinks;
+        boolean validateCache;
+        ArchiveLayout layout = ArchiveLayout.STREAM;
+        long chunkSize = 8 << 20;
+        Path startupProfile;
+        boolean repackJars;
+        boolean javaCds;
+        Path entryCache;
+        Path stats;
+        boolean verbose;
+        List<String> command;
+        /** The input is a build directory that was already copied and prepared, archive it as is. */
+        boolean prepared;
+
+        BuildOptions copy() {
+            BuildOptions copy = new BuildOptions();
+            copy.input = input;
+            copy.output = output;
+            copy.buildDir = buildDir;
+            copy.force = force;
+            copy.exclude = exclude;
+            copy.prepareCommand = prepareCommand;
+            copy.stub = stub;
+            copy.hardlink = hardlink;
+            copy.identifier = identifier;
+            copy.noRemoveBuildDirectory = noRemoveBuildDirectory;
+            copy.uncompressionMessage = uncompressionMessage;
+            copy.variants = variants;
+            copy.compression = compression;
+            copy.level = level;
+            copy.reproducible = reproducible;
+            copy.threads = threads;
+            copy.dedup = dedup;
+            copy.outsideSymlinks = outsideSymlinks;
+            copy.insideSymlinks = insideSymlinks;
+            copy.validateCache = validateCache;
+            copy.layout = layout;
+            copy.chunkSize = chunkSize;
+            copy.startupProfile = startupProfile;
+            copy.repackJars = repackJars;
+            copy.javaCds = javaCds;
+            copy.entryCache = entryCache;
+            copy.stats = stats;
+            copy.verbose = verbose;
+            copy.command = command;
+            copy.prepared = prepared;
+            return copy;
         }
-        Files.move(source, target);
     }
-    
-    private void deleteDirectory(Path directory) throws IOException {
-        if (exists(directory)) {
-            try (Stream<Path> paths = Files.walk(directory)) {
-                paths.sorted(Comparator.reverseOrder())
-                     .forEach(path -> {
-                         try {
-                             Files.delete(path);
-                         } catch (IOException e) {
-                             // Ignore
-                         }
-                     });
+
+    /** Builds the executables described by options, printing progress to log. Returns the created outputs. */
+    List<Path> build(BuildOptions options, PrintStream log) throws Exception {
+        long start = System.nanoTime();
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("input", options.input != null ? options.input.toAbsolutePath().toString() : null);
+        Map<String, Object> phases = new LinkedHashMap<>();
+        stats.put("phases", phases);
+        List<Path> outputs = build(options, log, phases);
+        stats.put("outputs", outputs.stream().map(path -> path.toAbsolutePath().toString()).collect(Collectors.toList()));
+        stats.put("seconds", seconds(System.nanoTime() - start));
+        if (options.stats != null) {
+            Path parent = options.stats.toAbsolutePath().getParent();
+            if (parent != null) {
+                createDirectories(parent);
             }
+            Files.writeString(options.stats, new GsonBuilder().setPrettyPrinting().create().toJson(stats));
         }
+        return outputs;
     }
-    
-    /** 
-     * Searches for stubs in the following sequence:
-     * 
-     * 1. Current directory
+
+    /** Seconds with millisecond precision, for the --stats report. */
+    private static double seconds(long nanos) {
+        return Math.round(nanos / 1_000_000.0) / 1000.0;
+    }
+
+    /** Throughput in MB/s (10^6 bytes per second), for the --stats report. */
+    private static double megabytesPerSecond(long bytes, long nanos) {
+        return nanos == 0 ? 0 : Math.round(bytes * 1000.0 / nanos * 10) / 10.0;
+    }
+
+    private List<Path> build(BuildOptions options, PrintStream log, Map<String, Object> phases) throws Exception {
+        Path input = options.input;
+        List<String> effectiveVariants = options.variants;
+        if (effectiveVariants == null || effectiveVariants.isEmpty()) {  // If no variants were provided, build the current platform and architecture
+            String stubName = getPlatform() + "-" + getArchitecture();
+            effectiveVariants = Arrays.asList(stubName);
+        } else if (effectiveVariants.contains("all")) { // If --variants was provided with values, build all known variants
+            effectiveVariants = new ArrayList<>(effectiveVariants);
+            effectiveVariants.remove("all");
+            effectiveVariants.addAll(getKnownVariants().keySet());
+        }
+
+        // Validate input
+        if (input == null || !exists(input) || !isDirectory(input)) {
+            throw new IllegalArgumentException("Input isn't a directory: " + input);
+        }
+
+        // Validate output
+        String osName = System.getProperty("os.name").toLowerCase();
+        boolean isWindows = osName.contains("win");
+
+        Path effectiveOutput = options.output;
+        if (effectiveOutput == null) {
+            effectiveOutput = Path.of(input.getFileName().toString());
+        }
+
+        effectiveOutput = options.buildDir.resolve(effectiveOutput);
+
+        if (exists(effectiveOutput) && !options.force) {
+            throw new IllegalArgumentException("Output already exists: %s, use --force to overwrite".formatted(effectiveOutput));
+        } else if (!exists(effectiveOutput)) {
+            createDirectories(effectiveOutput.getParent());
+        }
+        if (!endsWith(effectiveOutput, ".sh") && !endsWith(effectiveOutput, ".app")) {
+            options.compression.validateBinaryStub();
+        }
+
+        // Without a prepare command or a .app bundle nothing modifies the build directory,
+        // so the input is archived directly with the excludes applied while walking it
+        ExcludeMatcher excludes = options.prepared ? ExcludeMatcher.NONE : ExcludeMatcher.of(input, options.exclude != null ? options.exclude : List.of());
+        String prepareCommand = options.prepared ? null : options.prepareCommand;
+        boolean hasPrepareCommand = prepareCommand != null && !prepareCommand.isEmpty();
+        boolean direct = !hasPrepareCommand && !endsWith(effectiveOutput, ".app");
+        if (options.javaCds && endsWith(effectiveOutput, ".app")) {
+            throw new IllegalArgumentException("--java-cds isn't supported with macOS Application Bundles, which can't be written to once signed");
+        }
+        List<String> cmd = effectiveCommand(options);
+        Set<String> hot = options.startupProfile != null ? readStartupProfile(options.startupProfile) : null;
+        checkArchive(options, hot);
+        int effectiveThreads = effectiveThreads(options);
+
+        // Create build directory
+        Path tmpBuildDir = direct ? null : Files.createTempDirectory("jpaxa-");
+        Map<SymlinkPolicy, Path> archives = new EnumMap<>(SymlinkPolicy.class);
+        try {
+            // Copy input to build directory
+            if (!direct) {
+                long copyStart = System.nanoTime();
+                copyDirectory(input, tmpBuildDir, excludes, options.hardlink, options.outsideSymlinks);
+                Map<String, Object> copyStats = new LinkedHashMap<>();
+                copyStats.put("seconds", seconds(System.nanoTime() - copyStart));
+                copyStats.put("hardlink", options.hardlink);
+                phases.put("copy", copyStats);
+            }
+
+            // Run prepare command if specified
+            if (hasPrepareCommand) {
+                long prepareStart = System.nanoTime();
+                runPrepareCommand(prepareCommand, tmpBuildDir);
+                phases.put("prepare", Map.of("seconds", seconds(System.nanoTime() - prepareStart)));
+            }
+
+            // Handle .app bundle for macOS
+            if (endsWith(effectiveOutput, ".app")) {
+                if (!osName.contains("mac")) {
+                    throw new IllegalArgumentException("macOS Application Bundles (.app) are supported in macOS only.");
+                }
+                createMacAppBundle(effectiveOutput, tmpBuildDir, cmd, options.verbose);
+                if (options.verbose) {
+                    log.println("Created macOS Application Bundle: " + effectiveOutput);
+                }
+                return List.of(effectiveOutput);
+            }
+
+            if (endsWith(effectiveOutput, ".sh") && isWindows) {
+                throw new IllegalArgumentException("The Shell Stub (.sh) isn't supported in Windows.");
+            }
+
+            // Compress the application once per policy for the symlinks inside it, every stub below reuses the archive of its
+            // variant: windows-* variants get one of their own when they follow the symlinks the others preserve
+            boolean shellStub = endsWith(effectiveOutput, ".sh");
+            List<SymlinkPolicy> insidePolicies = shellStub
+                ? List.of(insideSymlinks(options, null))
+                : effectiveVariants.stream().map(variant -> insideSymlinks(options, variant)).distinct().toList();
+            Map<SymlinkPolicy, ArchiveInfo> archiveInfos = new EnumMap<>(SymlinkPolicy.class);
+            for (SymlinkPolicy insidePolicy : insidePolicies) {
+                Path archive = Files.createTempFile("jpaxa-", "." + options.compression.extension);
+                archives.put(insidePolicy, archive);
+                // The phases of an extra archive are reported with its policy, e.g. archiveFollow
+                Map<String, Object> archivePhases = archiveInfos.isEmpty() ? phases : new LinkedHashMap<>();
+                try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(archive))) {
+                    archiveInfos.put(insidePolicy, writeArchive(direct ? input : tmpBuildDir, direct ? excludes : ExcludeMatcher.NONE, options, insidePolicy, hot, out, log, archivePhases));
+                }
+                if (archivePhases != phases) {
+                    String suffix = insidePolicy.name().charAt(0) + insidePolicy.name().substring(1).toLowerCase(Locale.ROOT);
+                    archivePhases.forEach((phase, stats) -> phases.put(phase + suffix, stats));
+                }
+            }
+
+            // Handle .sh shell stub
+            if (shellStub) {
+                createShellStub(effectiveOutput, archives.get(insidePolicies.get(0)), archiveInfos.get(insidePolicies.get(0)), options.identifier, options.uncompressionMessage, cmd);
+                if (options.verbose) {
+                    log.println("Created Shell Stub: " + effectiveOutput);
+                }
+                return List.of(effectiveOutput);
+            }
+
+            // Binary stubs for variants, built concurrently since each is mostly copying the stub and the archive
+            Path outputBase = effectiveOutput;
+            List<String> buildVariants = effectiveVariants;
+            int variantThreads = Math.max(1, Math.min(buildVariants.size(), effectiveThreads));
+            Map<String, Long> variantNanos = new ConcurrentHashMap<>();
+            long variantsStart = System.nanoTime();
+            ExecutorService executor = Executors.newFixedThreadPool(variantThreads);
+            try {
+                List<Future<String>> results = new ArrayList<>();
+                List<Path> outputs = new ArrayList<>();
+                for (String variant : buildVariants) {
+                    outputs.add(variantOutputPath(outputBase, variant));
+                    results.add(executor.submit(() -> {
+                        long variantStart = System.nanoTime();
+                        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+                        try (PrintStream out = new PrintStream(buffer, true, StandardCharsets.UTF_8)) {
+                            SymlinkPolicy insidePolicy = insideSymlinks(options, variant);
+                            createBinaryStub(outputBase, archives.get(insidePolicy), archiveInfos.get(insidePolicy), isWindows, variant, options, out);
+                        }
+                        variantNanos.put(variant, System.nanoTime() - variantStart);
+                        return buffer.toString(StandardCharsets.UTF_8);
+                    }));
+                }
+                // Report in the order of the variants, whatever order they finish in
+                int failed = 0;
+                for (int i = 0; i < buildVariants.size(); i++) {
+                    try {
+                        log.print(results.get(i).get());
+                    } catch (ExecutionException e) {
+                        System.err.println("Error building variant " + buildVariants.get(i) + ": " + e.getCause().getMessage());
+                        failed++;
+                    }
+                }
+                if (failed > 0) {
+                    throw new IllegalStateException("%d of %d variants failed".formatted(failed, buildVariants.size()));
+                }
+                List<Map<String, Object>> variantStats = new ArrayList<>();
+                for (int i = 0; i < buildVariants.size(); i++) {
+                    long nanos = variantNanos.get(buildVariants.get(i));
+                    long size = Files.size(outputs.get(i));
+                    Map<String, Object> entry = new LinkedHashMap<>();
+                    entry.put("variant", buildVariants.get(i));
+                    entry.put("seconds", seconds(nanos));
+                    entry.put("size", size);
+                    entry.put("throughputMBps", megabytesPerSecond(size, nanos));
+                    variantStats.add(entry);
+                }
+                Map<String, Object> variantsPhase = new LinkedHashMap<>();
+                variantsPhase.put("seconds", seconds(System.nanoTime() - variantsStart));
+                variantsPhase.put("threads", variantThreads);
+                variantsPhase.put("variants", variantStats);
+                phases.put("variants", variantsPhase);
+                return outputs;
+            } finally {
+                executor.shutdownNow();
+            }
+
+        } finally {
+            for (Path archive : archives.values()) {
+                Files.deleteIfExists(archive);
+            }
+            // Without a build directory the input was archived directly
+            if (tmpBuildDir != null && !options.noRemoveBuildDirectory) {
+                deleteDirectory(tmpBuildDir);
+            } else if (tmpBuildDir != null) {
+                log.println("Build directory not removed: " + tmpBuildDir);
+            }
+        }
+    }
+
+    @Command(
+        name = "build-all",
+        description = "Build every application listed in a JSON manifest in a single run",
+        mixinStandardHelpOptions = true
+    )
+    int buildAll(
+        @Option(names = {"--jobs"}, paramLabel = "N",
+                description = "Number of applications built at the same time, defaults to half the available processors")
+        Integer jobs,
+        @Parameters(index = "0", paramLabel = "MANIFEST", description = "The JSON manifest listing the applications")
+        Path manifest
+    ) {
+        List<BuildOptions> builds;
+        try {
+            builds = readManifest(manifest);
+        } catch (Exception e) {
+            System.err.println("Error reading manifest " + manifest + ": " + e.getMessage());
+            return ExitCode.USAGE;
+        }
+        if (builds.isEmpty()) {
+            System.err.println("Error: the manifest lists no applications: " + manifest);
+            return ExitCode.USAGE;
+        }
+
+        int processors = Runtime.getRuntime().availableProcessors();
+        int effectiveJobs = Math.max(1, Math.min(builds.size(), jobs != null ? jobs : processors / 2));
+        for (BuildOptions options : builds) {
+            if (options.threads == null) {
+                // Share the processors between the applications built at the same time
+                options.threads = Math.max(1, processors / effectiveJobs);
+            }
+        }
+
+        // Start the largest applications first, so a big one doesn't end up alone at the end of the run
+        long[] sizes = new long[builds.size()];
+        for (int i = 0; i < builds.size(); i++) {
+            try {
+                sizes[i] = Cache.directorySize(builds.get(i).input);
+            } catch (IOException e) {
+                // The build reports the unreadable input
+            }
+        }
+        List<Integer> schedule = new ArrayList<>();
+        for (int i = 0; i < builds.size(); i++) {
+            schedule.add(i);
+        }
+        schedule.sort(Comparator.comparingLong((Integer i) -> sizes[i]).reversed());
+
+        record Result(List<Path> outputs, Duration duration, String error) {}
+        Result[] results = new Result[builds.size()];
+        ExecutorService executor = Executors.newFixedThreadPool(effectiveJobs);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int index : schedule) {
+                BuildOptions options = builds.get(index);
+                futures.add(executor.submit(() -> {
+                    ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+                    long start = System.nanoTime();
+                    Result result;
+                    try (PrintStream log = new PrintStream(buffer, true, StandardCharsets.UTF_8)) {
+                        result = new Result(build(options, log), Duration.ofNanos(System.nanoTime() - start), null);
+                    } catch (Exception e) {
+                        result = new Result(List.of(), Duration.ofNanos(System.nanoTime() - start), String.valueOf(e.getMessage()));
+                    }
+                    synchronized (results) {
+                        results[index] = result;
+                        System.out.print(buffer.toString(StandardCharsets.UTF_8));
+                        if (result.error() != null) {
+                            System.err.println("Error building " + buildName(options) + ": " + result.error());
+                        }
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return ExitCode.SOFTWARE;
+        } catch (ExecutionException e) {
+            System.err.println("Error: " + e.getCause().getMessage());
+            return ExitCode.SOFTWARE;
+        } finally {
+            executor.shutdownNow();
+        }
+
+        // Summary in manifest order
+        System.out.println();
+        System.out.printf(Locale.ROOT, "%-30s %12s %9s %9s  %s%n", "APPLICATION", "INPUT", "OUTPUTS", "TIME", "RESULT");
+        int failed = 0;
+        for (int i = 0; i < builds.size(); i++) {
+            Result result = results[i];
+            System.out.printf(Locale.ROOT, "%-30s %12s %9d %8.1fs  %s%n",
+                buildName(builds.get(i)), Cache.formatSize(sizes[i]), result.outputs().size(),
+                result.duration().toMillis() / 1000.0, result.error() == null ? "ok" : "FAILED: " + result.error());
+            if (result.error() != null) {
+                failed++;
+            }
+        }
+        System.out.println();
+        System.out.println((builds.size() - failed) + " of " + builds.size() + " application(s) built");
+        return failed == 0 ? ExitCode.OK : ExitCode.SOFTWARE;
+    }
+
+    /**
+     * An application in a build-all manifest. The keys mirror the build options; "defaults" in the
+     * manifest applies to every application, which can override any key. entryCache and stats are per application only.
+     */
+    static class ManifestEntry {
+        String input;
+        String output;
+        String directory;
+        Boolean force;
+        List<String> exclude;
+        String prepareCommand;
+        String stub;
+        Boolean hardlink;
+        String identifier;
+        Boolean keepBuildDirectory;
+        String message;
+        List<String> variants;
+        String compression;
+        Integer level;
+        Boolean reproducible;
+        Integer threads;
+        Boolean dedup;
+        String outsideSymlinks;
+        String insideSymlinks;
+        Boolean validateCache;
+        String layout;
+        String chunkSize;
+        String startupProfile;
+        Boolean repackJars;
+        Boolean javaCds;
+        String entryCache;
+        String stats;
+        Boolean verbose;
+        List<String> command;
+    }
+
+    /**
+     * Reads a build-all manifest, either an array of applications or an object with "apps" and optional "defaults":
+     * <pre>
+     * {"defaults": {"directory": "dist", "variants": ["all"]},
+     *  "apps": [{"input": "cli/foo", "command": ["{{app}}/bin/foo"], "exclude": ["*.md"]}]}
+     * </pre>
+     * Relative paths are resolved against the directory of the manifest.
+     */
+    static List<BuildOptions> readManifest(Path manifest) throws IOException {
+        JsonElement root;
+        try (Reader reader = Files.newBufferedReader(manifest, StandardCharsets.UTF_8)) {
+            root = JsonParser.parseReader(reader);
+        } catch (JsonParseException e) {
+            throw new IllegalArgumentException("Invalid JSON: " + e.getMessage());
+        }
+        JsonObject defaults = new JsonObject();
+        JsonArray apps;
+        if (root.isJsonArray()) {
+            apps = root.getAsJsonArray();
+        } else if (root.isJsonObject() && root.getAsJsonObject().has("apps")) {
+            apps = root.getAsJsonObject().getAsJsonArray("apps");
+            if (root.getAsJsonObject().has("defaults")) {
+                defaults = root.getAsJsonObject().getAsJsonObject("defaults");
+            }
+        } else {
+            throw new IllegalArgumentException("Expected an array of applications or an object with \"apps\"");
+        }
+        // The applications are built at the same time, they would all read and write the same file
+        for (String key : List.of("entryCache", "stats")) {
+            if (defaults.has(key)) {
+                throw new IllegalArgumentException("\"" + key + "\" can't be a default, each application needs its own file");
+            }
+        }
+
+        Path base = manifest.toAbsolutePath().getParent();
+        Gson gson = new Gson();
+        List<BuildOptions> builds = new ArrayList<>();
+        for (JsonElement app : apps) {
+            JsonObject merged = defaults.deepCopy();
+            app.getAsJsonObject().entrySet().forEach(entry -> merged.add(entry.getKey(), entry.getValue()));
+            ManifestEntry entry = gson.fromJson(merged, ManifestEntry.class);
+            if (entry.input == null) {
+                throw new IllegalArgumentException("Application without \"input\": " + app);
+            }
+            BuildOptions options = new BuildOptions();
+            options.input = base.resolve(entry.input);
+            options.output = entry.output != null ? Path.of(entry.output) : null;
+            if (entry.directory != null) {
+                options.buildDir = base.resolve(entry.directory);
+            }
+            options.force = entry.force == null || entry.force;
+            options.exclude = entry.exclude;
+            options.prepareCommand = entry.prepareCommand;
+            options.stub = entry.stub != null ? base.resolve(entry.stub) : null;
+            options.hardlink = Boolean.TRUE.equals(entry.hardlink);
+            options.identifier = entry.identifier;
+            options.noRemoveBuildDirectory = Boolean.TRUE.equals(entry.keepBuildDirectory);
+            options.uncompressionMessage = entry.message;
+            options.variants = entry.variants;
+            if (entry.compression != null) {
+                options.compression = Compression.fromId(entry.compression);
+            }
+            options.level = entry.level;
+            options.reproducible = Boolean.TRUE.equals(entry.reproducible);
+            options.threads = entry.threads;
+            options.dedup = Boolean.TRUE.equals(entry.dedup);
+            if (entry.outsideSymlinks != null) {
+                options.outsideSymlinks = SymlinkPolicy.valueOf(entry.outsideSymlinks.toUpperCase(Locale.ROOT));
+            }
+            if (entry.insideSymlinks != null) {
+                options.insideSymlinks = SymlinkPolicy.valueOf(entry.insideSymlinks.toUpperCase(Locale.ROOT));
+            }
+            options.validateCache = Boolean.TRUE.equals(entry.validateCache);
+            if (entry.layout != null) {
+                options.layout = ArchiveLayout.valueOf(entry.layout.toUpperCase(Locale.ROOT));
+            }
+            if (entry.chunkSize != null) {
+                options.chunkSize = Cache.parseSize(entry.chunkSize);
+            }
+            options.startupProfile = entry.startupProfile != null ? base.resolve(entry.startupProfile) : null;
+            options.repackJars = Boolean.TRUE.equals(entry.repackJars);
+            options.javaCds = Boolean.TRUE.equals(entry.javaCds);
+            options.entryCache = entry.entryCache != null ? base.resolve(entry.entryCache) : null;
+            options.stats = entry.stats != null ? base.resolve(entry.stats) : null;
+            options.verbose = Boolean.TRUE.equals(entry.verbose);
+            options.command = entry.command;
+            builds.add(options);
+        }
+        return builds;
+    }
+
+    /**
+     * For --java-cds: command with JAVA_CDS_OPTION after the java executable, or passed with --java-options to jbang.
+     * Launchers replace it with -XX:ArchiveClassesAtExit until a run dumped a dynamic class data sharing archive, moved
+     * to JAVA_CDS_ARCHIVE when the JVM exits normally, and with -XX:SharedArchiveFile to map it from then on. Both exist
+     * since JDK 13, unlike -XX:+AutoCreateSharedArchive, which JDK 17 and 18 refuse. The extraction directory is stable
+     * for an identifier, so the archive lives as long as the extracted application.
+     */
+    static List<String> javaCdsCommand(List<String> command) {
+        int launcher = -1;
+        boolean jbang = false;
+        for (int i = 0; i < command.size() && launcher < 0; i++) {
+            String part = command.get(i);
+            String name = part.substring(Math.max(part.lastIndexOf('/'), part.lastIndexOf('\\')) + 1);
+            if (JAVA_EXECUTABLES.contains(name) || JBANG_EXECUTABLES.contains(name)) {
+                launcher = i;
+                jbang = JBANG_EXECUTABLES.contains(name);
+            }
+        }
+        if (launcher < 0) {
+            throw new IllegalArgumentException("--java-cds needs a java or jbang command, found none in: " + command);
+        }
+        for (String argument : command.subList(launcher + 1, command.size())) {
+            // Also within the --java-options of jbang
+            for (String option : List.of("-XX:SharedArchiveFile", "-Xshare", "-XX:ArchiveClassesAtExit", "-XX:+AutoCreateSharedArchive")) {
+                if (argument.contains(option)) {
+                    throw new IllegalArgumentException("--java-cds can't be used with a command that sets " + argument);
+                }
+            }
+        }
+        int insert = launcher + 1;
+        if (jbang && insert < command.size() && command.get(insert).equals("run")) {
+            // The options of `jbang run` follow the subcommand
+            insert++;
+        }
+        List<String> result = new ArrayList<>(command.subList(0, insert));
+        result.add(jbang ? "--java-options=" + JAVA_CDS_OPTION : JAVA_CDS_OPTION);
+        result.addAll(command.subList(insert, command.size()));
+        return result;
+    }
+
+    /** The command the launchers run: the command of options, with the class data sharing options of --java-cds. */
+    static List<String> effectiveCommand(BuildOptions options) {
+        List<String> command = options.command != null ? options.command : List.of();
+        return options.javaCds ? javaCdsCommand(command) : command;
+    }
+
+    /** The identifier of options, or one derived from name and the content of the archive. */
+    static String effectiveIdentifier(BuildOptions options, String name, ArchiveInfo archiveInfo) {
+        if (options.identifier != null && !options.identifier.isEmpty()) {
+            return options.identifier;
+        }
+        return archiveInfo.contentIdentifier(name, effectiveCommand(options));
+    }
+
+    static int effectiveThreads(BuildOptions options) {
+        int threads = options.threads != null ? options.threads : Runtime.getRuntime().availableProcessors();
+        if (threads < 1) {
+            throw new IllegalArgumentException("--threads must be at least 1: " + threads);
+        }
+        return threads;
+    }
+
+    /**
+     * What to do with the symlinks inside the input for variant, null for the shell stub. Windows only lets
+     * administrators create symlinks, so its launchers get copies unless --inside-symlinks says otherwise.
+     */
+    static SymlinkPolicy insideSymlinks(BuildOptions options, String variant) {
+        if (options.insideSymlinks != null) {
+            return options.insideSymlinks;
+        }
+        return variant != null && isWindowsVariantStub(variant) ? SymlinkPolicy.FOLLOW : SymlinkPolicy.PRESERVE;
+    }
+
+    /** Whether the archive is chunked: --layout chunked, or a startup profile whose paths go in chunks of their own. */
+    private static boolean chunked(BuildOptions options, Set<String> hot) {
+        return options.layout == ArchiveLayout.CHUNKED || hot != null;
+    }
+
+    /** Rejects archive options that don't go together, before anything is copied or written. hot are the paths of the startup profile. */
+    static void checkArchive(BuildOptions options, Set<String> hot) {
+        options.compression.validateLevel(options.level);
+        effectiveThreads(options);
+        if (options.dedup && options.entryCache != null) {
+            throw new IllegalArgumentException("--dedup can't be used with --entry-cache, whose entries are compressed independently");
+        }
+        if (chunked(options, hot) && options.dedup) {
+            throw new IllegalArgumentException("--dedup can't be used with --layout chunked, a hard link could be extracted before the file it links to");
+        }
+        if (chunked(options, hot) && options.entryCache != null) {
+            throw new IllegalArgumentException("--entry-cache can't be used with --layout chunked");
+        }
+        // --java-cds rejects a command that already sets the options it adds
+        effectiveCommand(options);
+    }
+
+    /**
+     * The archive of a build, the part shared by `build` and the Builder once checkArchive accepted the options: the
+     * entries of root, with the jars repacked, written to out with the codec and layout of the options. insideLinks
+     * decides about the symlinks inside root, hot are the paths of the startup profile, or null. The repack and
+     * archive phases are recorded in phases.
+     */
+    static ArchiveInfo writeArchive(Path root, ExcludeMatcher excludes, BuildOptions options, SymlinkPolicy insideLinks, Set<String> hot,
+                                    OutputStream out, PrintStream log, Map<String, Object> phases) throws Exception {
+        Compression compression = options.compression;
+        int threads = effectiveThreads(options);
+        // Symlinks created by the prepare command go through the same policies
+        List<TreeEntry> entries = collectEntries(root, excludes, insideLinks, options.outsideSymlinks);
+        if (hot != null) {
+            Set<String> archived = entries.stream().map(TreeEntry::name).collect(Collectors.toSet());
+            long found = hot.stream().filter(archived::contains).count();
+            if (found == 0) {
+                throw new IllegalArgumentException("None of the %d paths of the startup profile is in the input%s".formatted(
+                    hot.size(), options.startupProfile != null ? ": " + options.startupProfile : ""));
+            }
+            if (options.verbose) {
+                log.println("Startup profile: %d of %d paths found in the input".formatted(found, hot.size()));
+            }
+        }
+        Path repackDir = null;
+        try {
+            if (options.repackJars) {
+                long repackStart = System.nanoTime();
+                repackDir = Files.createTempDirectory("jpaxa-jars-");
+                RepackInfo repackInfo = new RepackInfo();
+                entries = repackJars(entries, repackDir, threads, repackInfo);
+                Map<String, Object> repackStats = new LinkedHashMap<>();
+                repackStats.put("seconds", seconds(System.nanoTime() - repackStart));
+                repackStats.put("jars", repackInfo.jars);
+                repackStats.put("repacked", repackInfo.repacked);
+                repackStats.put("originalSize", repackInfo.originalSize);
+                repackStats.put("repackedSize", repackInfo.repackedSize);
+                phases.put("repack", repackStats);
+                if (options.verbose) {
+                    log.println("Repacked %d of %d jars with stored entries: %d -> %d bytes".formatted(
+                        repackInfo.repacked, repackInfo.jars, repackInfo.originalSize, repackInfo.repackedSize));
+                }
+            }
+
+            long archiveStart = System.nanoTime();
+            CountingOutputStream counter = new CountingOutputStream(out);
+            boolean chunked = chunked(options, hot);
+            ArchiveInfo archiveInfo = options.entryCache != null
+                ? writeTarballIncremental(entries, counter, compression, options.level, threads, options.reproducible, options.entryCache)
+                : chunked
+                ? writeChunkedTarball(entries, counter, compression, options.level, threads, options.reproducible, options.chunkSize, hot)
+                : writeTarball(entries, counter, compression, options.level, threads, options.reproducible, options.dedup);
+            counter.flush();
+            long archiveNanos = System.nanoTime() - archiveStart;
+            long compressedSize = counter.getBytesWritten();
+            Map<String, Object> archiveStats = new LinkedHashMap<>();
+            archiveStats.put("seconds", seconds(archiveNanos));
+            archiveStats.put("compression", compression.id());
+            archiveStats.put("level", options.level);
+            archiveStats.put("threads", threads);
+            archiveStats.put("files", archiveInfo.files);
+            archiveStats.put("directories", archiveInfo.directories);
+            archiveStats.put("symlinks", archiveInfo.symlinks);
+            archiveStats.put("contentSize", archiveInfo.contentSize);
+            archiveStats.put("uncompressedSize", archiveInfo.uncompressedSize);
+            archiveStats.put("compressedSize", compressedSize);
+            archiveStats.put("compressionRatio", compressedSize == 0 ? 0 : Math.round((double) archiveInfo.uncompressedSize / compressedSize * 100) / 100.0);
+            archiveStats.put("throughputMBps", megabytesPerSecond(archiveInfo.uncompressedSize, archiveNanos));
+            archiveStats.put("insideSymlinks", insideLinks.name().toLowerCase(Locale.ROOT));
+            if (options.entryCache != null) {
+                archiveStats.put("reusedEntries", archiveInfo.reusedEntries);
+            }
+            if (chunked) {
+                archiveStats.put("chunks", archiveInfo.chunks.size());
+                archiveStats.put("hotChunks", archiveInfo.hotChunks);
+            }
+            if (options.dedup) {
+                archiveStats.put("linkedFiles", archiveInfo.linkedFiles);
+                archiveStats.put("linkedSize", archiveInfo.linkedSize);
+            }
+            phases.put("archive", archiveStats);
+            return archiveInfo;
+        } finally {
+            if (repackDir != null) {
+                deleteDirectory(repackDir);
+            }
+        }
+    }
+
+    /**
+     * Writes what follows the archive in a binary: the integrity manifest, the footer pointing to it and the trailer.
+     * Returns the footer.
+     */
+    static byte[] writeFooter(OutputStream out, long stubLength, long archiveLength, ArchiveInfo archiveInfo, String identifier, BuildOptions options) throws IOException {
+        byte[] integrity = archiveInfo.integrityManifest();
+        byte[] footerBytes = footer(identifier, effectiveCommand(options), archiveInfo, options.uncompressionMessage, stubLength + archiveLength,
+            integrity.length, options.validateCache, options.javaCds ? JAVA_CDS_ARCHIVE : null);
+        out.write(integrity);
+        out.write(FOOTER_SEPARATOR);
+        out.write(footerBytes);
+        out.write(Trailer.of(stubLength, archiveLength, integrity.length, footerBytes.length).toBytes());
+        return footerBytes;
+    }
+
+    private static String buildName(BuildOptions options) {
+        return (options.output != null ? options.output : options.input.getFileName()).toString();
+    }
+
+    /**
+     * Builds, then builds again whenever the input changes, until interrupted. Bursts of changes are collected until
+     * nothing changed for the debounce time. With a prepare command the build directory is kept between builds: changed
+     * files are copied into it and the prepare command only runs again when a changed path matches prepareWatch (any
+     * change when empty), so the results of its previous run are reused. Outputs are replaced atomically, so a
+     * launcher started during a build still runs the previous executable.
+     */
+    void watch(BuildOptions options, Duration debounce, List<String> prepareWatch) throws Exception {
+        Path input = options.input.toAbsolutePath().normalize();
+        if (!isDirectory(input)) {
+            throw new IllegalArgumentException("Input isn't a directory: " + options.input);
+        }
+        ExcludeMatcher excludes = ExcludeMatcher.of(input, options.exclude != null ? options.exclude : List.of());
+        ExcludeMatcher prepareInputs = prepareWatch.isEmpty() ? null : ExcludeMatcher.of(prepareWatch);
+        boolean hasPrepareCommand = options.prepareCommand != null && !options.prepareCommand.isEmpty();
+        // Outputs of the build itself may be inside the input, they must not trigger another build
+        List<Path> ignored = Stream.of(options.buildDir, options.entryCache, options.stats)
+            .filter(Objects::nonNull)
+            .map(path -> path.toAbsolutePath().normalize())
+            .collect(Collectors.toList());
+
+        BuildOptions iteration = options.copy();
+        iteration.output = options.output != null ? options.output : Path.of(input.getFileName().toString());
+        Path workDirectory = null;
+        if (hasPrepareCommand) {
+            workDirectory = Files.createTempDirectory("jpaxa-watch-");
+            iteration.input = workDirectory;
+            iteration.prepared = true;
+            Path directory = workDirectory;
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    deleteDirectory(directory);
+                } catch (IOException e) {
+                    // Left in the temporary directory
+                }
+            }));
+        }
+
+        try (WatchService watcher = input.getFileSystem().newWatchService()) {
+            registerTree(watcher, input, input, excludes, ignored);
+            boolean resync = true;
+            boolean prepare = true;
+            Set<String> changed = new TreeSet<>();
+            while (true) {
+                long start = System.nanoTime();
+                try {
+                    if (workDirectory != null) {
+                        if (resync) {
+                            deleteDirectory(workDirectory);
+                            createDirectories(workDirectory);
+                            copyDirectory(input, workDirectory, excludes, options.hardlink, options.outsideSymlinks);
+                        } else {
+                            syncPaths(input, workDirectory, excludes, options.outsideSymlinks, changed);
+                        }
+                        if (prepare) {
+                            System.out.println("Running prepare command: " + options.prepareCommand);
+                            runPrepareCommand(options.prepareCommand, workDirectory);
+                        }
+                    }
+                    build(iteration, System.out);
+                    System.out.printf(Locale.ROOT, "Built in %.1fs, watching %s for changes%n", (System.nanoTime() - start) / 1e9, input);
+                    resync = false;
+                } catch (Exception e) {
+                    System.err.println("Error: " + e.getMessage());
+                    System.out.println("Watching " + input + " for changes");
+                    // Start over after a failure, a failed prepare command may leave the build directory in any state
+                    resync = true;
+                }
+
+                changed.clear();
+                boolean overflow = false;
+                while (changed.isEmpty() && !overflow) {
+                    WatchKey key = watcher.take();
+                    while (key != null) {
+                        Path directory = (Path) key.watchable();
+                        for (WatchEvent<?> event : key.pollEvents()) {
+                            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                                overflow = true;
+                                continue;
+                            }
+                            Path path = directory.resolve((Path) event.context());
+                            if (ignored.stream().anyMatch(path::startsWith)) {
+                                continue;
+                            }
+                            boolean isDirectory = Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS);
+                            String name = relativeName(input, path);
+                            if (excludes.isExcluded(name, isDirectory)) {
+                                continue;
+                            }
+                            changed.add(name);
+                            if (isDirectory && event.kind() == StandardWatchEventKinds.ENTRY_CREATE) {
+                                registerTree(watcher, input, path, excludes, ignored);
+                            }
+                        }
+                        key.reset();
+                        // Keep collecting until nothing changed for the debounce time
+                        key = watcher.poll(debounce.toMillis(), TimeUnit.MILLISECONDS);
+                    }
+                }
+                if (overflow) {
+                    System.out.println("Too many changes to track, rebuilding everything");
+                    resync = true;
+                } else {
+                    System.out.println("Changed: " + (changed.size() == 1 ? changed.iterator().next() : changed.size() + " paths"));
+                }
+                prepare = resync || prepareInputs == null || changed.stream().anyMatch(name -> matchesPathOrParent(prepareInputs, input, name));
+            }
+        }
+    }
+
+    private static void registerTree(WatchService watcher, Path input, Path start, ExcludeMatcher excludes, List<Path> ignored) throws IOException {
+        Files.walkFileTree(start, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                if (!dir.equals(input) && (ignored.stream().anyMatch(dir::startsWith) || excludes.isExcluded(relativeName(input, dir), true))) {
+                    return FileVisitResult.SKIP_SUBTREE;
+                }
+                dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE, StandardWatchEventKinds.ENTRY_MODIFY);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    /** Copies changed paths of input into the kept build directory, and removes the ones deleted from input. */
+    private void syncPaths(Path input, Path workDirectory, ExcludeMatcher excludes, SymlinkPolicy outsideLinks, Set<String> changed) throws IOException {
+        for (String name : changed) {
+            Path source = input.resolve(name);
+            Path target = workDirectory.resolve(name);
+            if (!Files.exists(source, LinkOption.NOFOLLOW_LINKS)) {
+                deleteDirectory(target);
+                continue;
+            }
+            if (Files.isDirectory(source, LinkOption.NOFOLLOW_LINKS)) {
+                createDirectories(target);
+            } else if (Files.isDirectory(target, LinkOption.NOFOLLOW_LINKS)) {
+                // A directory replaced by a file or a symlink
+                deleteDirectory(target);
+            }
+            boolean[] linkable = {false};
+            for (TreeEntry entry : collectEntries(input, source, excludes, SymlinkPolicy.PRESERVE, outsideLinks)) {
+                copyEntry(entry, workDirectory.resolve(entry.name()), linkable);
+            }
+        }
+    }
+
+    /** Whether the path or one of its parent directories matches, as .gitignore patterns also cover everything below a matched directory. */
+    private static boolean matchesPathOrParent(ExcludeMatcher patterns, Path input, String name) {
+        for (String path = name; !path.isEmpty(); path = path.contains("/") ? path.substring(0, path.lastIndexOf('/')) : "") {
+            if (patterns.isExcluded(path, !path.equals(name) || Files.isDirectory(input.resolve(path)))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void runPrepareCommand(String prepareCommand, Path directory) throws IOException, InterruptedException {
+        ProcessBuilder pb = new ProcessBuilder();
+        if (System.getProperty("os.name").toLowerCase().contains("win")) {
+            pb.command("cmd", "/c", prepareCommand);
+        } else {
+            pb.command("sh", "-c", prepareCommand);
+        }
+        pb.directory(directory.toFile());
+        Process process = pb.start();
+        int exitCode = process.waitFor();
+        if (exitCode != 0) {
+            throw new RuntimeException("Prepare command failed with exit code: " + exitCode);
+        }
+    }
+
+    private static boolean endsWith(Path path, String suffix) {
+        return path.getFileName().toString().endsWith(suffix);
+    }
+
+    private static boolean isWindowsVariantStub(String variant) {
+        // variant is like "windows-x86_64"
+        return variant.startsWith("windows-");
+    }
+
+    private static String stripExeSuffix(String path) {
+        return path.endsWith(".exe") ? path.substring(0, path.length() - 4) : path;
+    }
+
+    private static Path variantOutputPath(Path outputBase, String variant) {
+        // For Windows variants, ensure the produced filename ends with ".exe" so it is directly runnable on Windows.
+        // We put ".exe" at the end (after the variant suffix), because Windows requires the extension at the end.
+        if (isWindowsVariantStub(variant)) {
+            return Path.of(stripExeSuffix(outputBase.toString()) + "-" + variant + ".exe");
+        }
+        return Path.of(outputBase + "-" + variant);
+    }
+
+    private void createBinaryStub(Path outputBase, Path archive, ArchiveInfo archiveInfo, boolean isWindows, String variant, BuildOptions options, PrintStream log) throws Exception {
+
+        String outputPath = variantOutputPath(outputBase, variant).toString();
+        Path stubPath = options.stub;
+        if (stubPath == null) {
+            stubPath = findStub(variant);
+            if (stubPath == null) {
+                throw new IllegalArgumentException(
+                    "Stub not found (your operating system / architecture may be unsupported): " + variant +
+                    "\nYou can compile stubs with: go build -o " + variant + " <path-to-stub.go>"
+                );
+            }
+        }
+        
+        String baseName = outputBase.getFileName().toString();
+        baseName = baseName.replaceAll("\\.exe$", "").replaceAll("\\.app$", "").replaceAll("\\.sh$", "");
+        String identifier = effectiveIdentifier(options, baseName, archiveInfo);
+
+        if (Files.exists(Path.of(outputPath)) && !options.force) {
+            throw new IllegalArgumentException("Output already exists: %s, use --force to overwrite".formatted(outputPath));
+        }
+        if (options.verbose) {
+            log.println("Copying stub to output: " + stubPath + " -> " + outputPath);
+        }
+        // Write next to the output and move it in place when complete, so a failure never leaves a broken binary
+        Path partialPath = Path.of(outputPath + ".partial-" + UUID.randomUUID());
+        try {
+            copy(stubPath, partialPath);
+            long stubLength = Files.size(stubPath);
+
+            // Make executable on Unix
+            if (!isWindows) {
+                try {
+                    Set<PosixFilePermission> perms = Files.getPosixFilePermissions(partialPath);
+                    perms.add(PosixFilePermission.OWNER_EXECUTE);
+                    perms.add(PosixFilePermission.GROUP_EXECUTE);
+                    perms.add(PosixFilePermission.OTHERS_EXECUTE);
+                    Files.setPosixFilePermissions(partialPath, perms);
+                } catch (UnsupportedOperationException e) {
+                    // Windows doesn't support PosixFilePermission
+                }
+            }
+
+            // Append the shared archive
+            appendArchive(archive, partialPath);
+            long archiveLength = Files.size(archive);
+
+            // Append the integrity manifest and the footer pointing to it
+            byte[] footerBytes;
+            try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(partialPath, StandardOpenOption.APPEND))) {
+                footerBytes = writeFooter(out, stubLength, archiveLength, archiveInfo, identifier, options);
+            }
+            if (options.verbose) {
+                log.println("Footer JSON: " + new String(footerBytes, StandardCharsets.UTF_8));
+            }
+
+            Files.move(partialPath, Path.of(outputPath), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(partialPath);
+        }
+
+        log.println("Created binary: " + outputPath);
+    }
+    
+    /**
+     * The footer JSON the launchers read: where to extract, what to run and how to decompress the archive, and where
+     * the integrity manifest is, an offset from the start of the binary. javaCds is the archive of --java-cds, for inspect.
+     */
+    static byte[] footer(String identifier, List<String> command, ArchiveInfo archiveInfo, String uncompressionMessage,
+                         long integrityOffset, long integrityLength, boolean validateCache, String javaCds) {
+        Map<String, Object> footer = new HashMap<>();
+        footer.put("identifier", identifier);
+        footer.put("command", command);
+        footer.put("compression", archiveInfo.compression.id());
+        footer.put("uncompressedSize", archiveInfo.uncompressedSize);
+        if (uncompressionMessage != null) {
+            footer.put("uncompressionMessage", uncompressionMessage);
+        }
+        if (integrityLength > 0) {
+            Map<String, Object> integrity = new LinkedHashMap<>();
+            integrity.put("offset", integrityOffset);
+            integrity.put("length", integrityLength);
+            integrity.put("entries", archiveInfo.integrity.size());
+            footer.put("integrity", integrity);
+        }
+        if (validateCache) {
+            footer.put("validateCache", true);
+        }
+        if (!archiveInfo.chunks.isEmpty()) {
+            footer.put("chunks", archiveInfo.chunks);
+        }
+        if (archiveInfo.hotChunks > 0) {
+            footer.put("hotChunks", archiveInfo.hotChunks);
+        }
+        if (javaCds != null) {
+            footer.put("javaCds", javaCds);
+        }
+        return new Gson().toJson(footer).getBytes(StandardCharsets.UTF_8);
+    }
+
+    void createShellStub(Path output, Path archive, ArchiveInfo archiveInfo, String explicitIdentifier, String uncompressionMessage, List<String> command) throws Exception {
+        // Generate identifier if not provided
+        String identifier = explicitIdentifier;
+        if (identifier == null || identifier.isEmpty()) {
+            String baseName = output.getFileName().toString().replaceAll("\\.sh$", "");
+            identifier = archiveInfo.contentIdentifier(baseName, command);
+        }
+        
+        // Generate shell stub script
+        String stubScript = """
+            #!/usr/bin/env sh
+            export jpaxa_TEMPORARY_DIRECTORY="$(dirname $(mktemp))/jpaxa"
+            export jpaxa_EXTRACTION_ATTEMPT=-1
+            export jpaxa_LEASE=""
+            while true
+            do
+              export jpaxa_EXTRACTION_ATTEMPT=$(( jpaxa_EXTRACTION_ATTEMPT + 1 ))
+              export jpaxa_LOCK="$jpaxa_TEMPORARY_DIRECTORY/locks/%s/$jpaxa_EXTRACTION_ATTEMPT"
+              export jpaxa_APPLICATION_DIRECTORY="$jpaxa_TEMPORARY_DIRECTORY/applications/%s/$jpaxa_EXTRACTION_ATTEMPT"
+              # Lease the attempt before looking at it and for as long as the command runs from it, like the binary launchers
+              if [ -n "$jpaxa_LEASE" ]
+              then
+                rm -f "$jpaxa_LEASE"
+              fi
+              export jpaxa_LEASE="$jpaxa_TEMPORARY_DIRECTORY/leases/%s/$jpaxa_EXTRACTION_ATTEMPT/$$"
+              mkdir -p "$(dirname "$jpaxa_LEASE")"
+              touch "$jpaxa_LEASE"
+              if [ -d "$jpaxa_APPLICATION_DIRECTORY" ] 
+              then
+                if [ -d "$jpaxa_LOCK" ] 
+                then
+                  continue
+                else
+                  break
+                fi
+              else
+            """.formatted(identifier, identifier, identifier);
+        if (uncompressionMessage != null) {
+            stubScript += "    echo \"%s\" >&2\n".formatted(uncompressionMessage);
+        }
+        stubScript += """
+            mkdir -p "$jpaxa_LOCK"
+            mkdir -p "$jpaxa_APPLICATION_DIRECTORY"
+            # Keep the lock fresh while extracting, so launchers sharing the identifier don't take it for abandoned
+            (while sleep 10 && kill -0 $$ 2>/dev/null; do touch "$jpaxa_LOCK"; done) </dev/null >/dev/null 2>&1 &
+            jpaxa_LOCK_HEARTBEAT=$!
+            tail -n+__STUB_LINES__ "$0" | __EXTRACT__ -C "$jpaxa_APPLICATION_DIRECTORY"
+            kill $jpaxa_LOCK_HEARTBEAT 2>/dev/null
+            rmdir "$jpaxa_LOCK"
+            break
+          fi
+        done
+        touch "$jpaxa_APPLICATION_DIRECTORY" 2>/dev/null
+        # The command runs as a child rather than with exec, so the lease is touched meanwhile and removed after it
+        (while sleep 10 && kill -0 $$ 2>/dev/null; do touch "$jpaxa_LEASE"; done) </dev/null >/dev/null 2>&1 &
+        jpaxa_HEARTBEAT=$!
+        jpaxa_CDS_DUMP=""
+        trap 'kill $jpaxa_HEARTBEAT 2>/dev/null; rm -f "$jpaxa_LEASE" $jpaxa_CDS_DUMP' EXIT
+        trap 'exit 130' INT
+        trap 'exit 143' TERM
+        """;
+
+        String commandLine = "";
+        boolean javaCds = false;
+        for (String cmdPart : command) {
+            String expanded = APP_PLACEHOLDER.matcher(cmdPart).replaceAll("\"\\$jpaxa_APPLICATION_DIRECTORY\"");
+            javaCds |= expanded.contains(JAVA_CDS_OPTION);
+            commandLine += " \"" + expanded.replace(JAVA_CDS_OPTION, "$jpaxa_CDS_OPTION") + "\"";
+        }
+        commandLine += " \"$@\"";
+        if (javaCds) {
+            // Like the launchers: map the archive once a run dumped it, and move a dump in place only after a normal exit
+            stubScript += """
+            jpaxa_CDS_ARCHIVE="%s"
+            if [ -f "$jpaxa_CDS_ARCHIVE" ]
+            then
+              jpaxa_CDS_OPTION="-XX:SharedArchiveFile=$jpaxa_CDS_ARCHIVE"
+            else
+              jpaxa_CDS_DUMP="$jpaxa_CDS_ARCHIVE.$$.partial"
+              jpaxa_CDS_OPTION="-XX:ArchiveClassesAtExit=$jpaxa_CDS_DUMP"
+            fi
+            %s
+            jpaxa_STATUS=$?
+            if [ $jpaxa_STATUS -lt 128 ] && [ -n "$jpaxa_CDS_DUMP" ] && [ -f "$jpaxa_CDS_DUMP" ]
+            then
+              mv -f "$jpaxa_CDS_DUMP" "$jpaxa_CDS_ARCHIVE"
+            fi
+            exit $jpaxa_STATUS
+            """.formatted(APP_PLACEHOLDER.matcher(JAVA_CDS_ARCHIVE).replaceAll("\\$jpaxa_APPLICATION_DIRECTORY"), commandLine.substring(1));
+        } else {
+            // The archive follows, sh must not read on
+            stubScript += commandLine.substring(1) + "\nexit $?\n";
+        }
+        stubScript = stubScript.replace("__EXTRACT__", archiveInfo.compression.shellExtractCommand);
+
+        // Use split(..., -1) so trailing empty string is kept (Java drops it by default; jpaxa/JS does not)
+        stubScript = stubScript.replace("__STUB_LINES__", String.valueOf(stubScript.split("\n", -1).length));
+
+        // Written next to the output and moved in place when complete, a running script never sees a partial one
+        Path partial = output.resolveSibling(output.getFileName() + ".partial-" + UUID.randomUUID());
+        try {
+            writeString(partial, stubScript);
+
+            // Make executable
+            try {
+                var perms = EnumSet.of(
+                    OWNER_READ, OWNER_WRITE, OWNER_EXECUTE,
+                    GROUP_READ, GROUP_EXECUTE,
+                    OTHERS_READ, OTHERS_EXECUTE
+                );
+                Files.setPosixFilePermissions(partial, perms);
+            } catch (UnsupportedOperationException e) {
+                // Windows doesn't support PosixFilePermission
+            }
+
+            // Append the archive
+            appendArchive(archive, partial);
+            Files.move(partial, output, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(partial);
+        }
+    }
+    
+    private void createMacAppBundle(Path output, Path buildDir, List<String> command, boolean verbose) throws Exception {
+        String name = output.getFileName().toString().replaceAll("\\.app$", "");
+        Path appPath = output;
+        Path contentsPath = appPath.resolve("Contents");
+        Path macosPath = contentsPath.resolve("MacOS");
+        Path resourcesPath = contentsPath.resolve("Resources");
+        
+        createDirectories(macosPath);
+        createDirectories(resourcesPath);
+        
+        // Create MacOS executable
+        String macosScript = "#!/usr/bin/env sh\n" +
+            "open \"$(dirname \"$0\")/../Resources/" + name + "\"\n";
+        Path macosExecutable = macosPath.resolve(name);
+        write(macosExecutable, macosScript.getBytes());
+        try {
+            Set<PosixFilePermission> perms = EnumSet.of(
+                OWNER_READ, PosixFilePermission.OWNER_WRITE, PosixFilePermission.OWNER_EXECUTE,
+                PosixFilePermission.GROUP_READ, PosixFilePermission.GROUP_EXECUTE,
+                PosixFilePermission.OTHERS_READ, PosixFilePermission.OTHERS_EXECUTE
+            );
+            Files.setPosixFilePermissions(macosExecutable, perms);
+        } catch (Exception e) {
+            // Ignore
+        }
+        
+        // Create Resources executable
+        StringBuilder resourcesScript = new StringBuilder();
+        resourcesScript.append("#!/usr/bin/env sh\n");
+        for (int i = 0; i < command.size(); i++) {
+            String cmdPart = command.get(i);
+            String expanded = APP_PLACEHOLDER.matcher(cmdPart).replaceAll("\\$(dirname \"\\$0\")/application");
+            if (i > 0) resourcesScript.append(" ");
+            resourcesScript.append("\"").append(expanded).append("\"");
+        }
+        resourcesScript.append("\n");
+        
+        Path resourcesExecutable = resourcesPath.resolve(name);
+        write(resourcesExecutable, resourcesScript.toString().getBytes());
+        try {
+            Set<PosixFilePermission> perms = EnumSet.of(
+                OWNER_READ, PosixFilePermission.OWNER_WRITE, PosixFilePermission.OWNER_EXECUTE,
+                PosixFilePermission.GROUP_READ, PosixFilePermission.GROUP_EXECUTE,
+                PosixFilePermission.OTHERS_READ, PosixFilePermission.OTHERS_EXECUTE
+            );
+            Files.setPosixFilePermissions(resourcesExecutable, perms);
+        } catch (Exception e) {
+            // Ignore
+        }
+        
+        // Move build directory to Resources/application
+        Path applicationPath = resourcesPath.resolve("application");
+        moveDirectory(buildDir, applicationPath);
+    }
+    
+    ArchiveInfo appendTarball(List<TreeEntry> entries, Path outputPath, Compression compression, Integer level, int threads, boolean reproducible, boolean dedup) throws Exception {
+        try (FileOutputStream fos = new FileOutputStream(outputPath.toFile(), true);
+             BufferedOutputStream bos = new BufferedOutputStream(fos)) {
+            return writeTarball(entries, bos, compression, level, threads, reproducible, dedup);
+        }
+    }
+
+    /** Writes the compressed tar of entries, see {@link #collectEntries}, to out, which is left open. */
+    static ArchiveInfo writeTarball(List<TreeEntry> entries, OutputStream out, Compression compression, Integer level, int threads, boolean reproducible, boolean dedup) throws IOException {
+        FileTime reproducibleTime = reproducible ? reproducibleModificationTime() : null;
+        // Digest of every entry, keyed by path so the identifier doesn't depend on the walk order
+        Map<String, String> entryDigests = new TreeMap<>();
+        ArchiveInfo info = new ArchiveInfo();
+        CountingOutputStream counter;
+        try (OutputStream cos = compression.compress(new KeepOpenOutputStream(out), level, threads, reproducible);
+             TarArchiveOutputStream tos = new TarArchiveOutputStream(counter = new CountingOutputStream(cos))) {
+            
+            tos.setLongFileMode(TarArchiveOutputStream.LONGFILE_POSIX);
+            
+            List<TreeEntry> paths = new ArrayList<>(entries);
+            if (reproducible) {
+                // The walk order depends on the file system, sort by the path as it appears in the archive
+                paths.sort(Comparator.comparing(TreeEntry::name));
+            }
+            Map<String, Duplicate> duplicates = dedup ? findDuplicates(paths) : Map.of();
+            for (TreeEntry treeEntry : paths) {
+                writeEntry(tos, treeEntry, reproducibleTime, duplicates.get(treeEntry.name()), info, entryDigests);
+            }
+        }
+        info.compression = compression;
+        info.uncompressedSize = counter.getBytesWritten();
+        MessageDigest contentDigest = sha256();
+        entryDigests.forEach((path, digest) -> contentDigest.update((path + "\0" + digest + "\n").getBytes(StandardCharsets.UTF_8)));
+        info.contentDigest = contentDigest.digest();
+        return info;
+    }
+
+    /**
+     * Like writeTarball, for --layout chunked: the entries are grouped in order into chunks of about chunkSize bytes,
+     * split between entries, and every chunk is compressed on its own, in parallel. Chunks hold no end of archive
+     * records, a last member holds them, so launchers reading the archive front to back still decompress a single tar
+     * stream, while the chunk index recorded in the footer lets newer ones extract the chunks in parallel.
+     * With hot, the paths of a --startup-profile, those entries and their directories come first in chunks of their
+     * own, counted in ArchiveInfo.hotChunks: the launchers start the command once these are extracted.
+     */
+    static ArchiveInfo writeChunkedTarball(List<TreeEntry> entries, OutputStream out, Compression compression, Integer level, int threads, boolean reproducible, long chunkSize, Set<String> hot) throws IOException {
+        if (chunkSize < 1) {
+            throw new IllegalArgumentException("--chunk-size must be positive: " + chunkSize);
+        }
+        FileTime reproducibleTime = reproducible ? reproducibleModificationTime() : null;
+        List<TreeEntry> paths = new ArrayList<>(entries);
+        if (reproducible) {
+            paths.sort(Comparator.comparing(TreeEntry::name));
+        }
+        Set<String> hotPaths = new HashSet<>();
+        if (hot != null) {
+            for (String name : hot) {
+                // The directories above a hot path are hot too
+                for (String path = name; !path.isEmpty(); path = path.contains("/") ? path.substring(0, path.lastIndexOf('/')) : "") {
+                    hotPaths.add(path);
+                }
+            }
+        }
+        List<TreeEntry> hotEntries = paths.stream().filter(entry -> hotPaths.contains(entry.name())).collect(Collectors.toList());
+        List<TreeEntry> coldEntries = paths.stream().filter(entry -> !hotPaths.contains(entry.name())).collect(Collectors.toList());
+        List<List<TreeEntry>> groups = new ArrayList<>(chunkGroups(hotEntries, chunkSize));
+        int hotChunks = groups.size();
+        groups.addAll(chunkGroups(coldEntries, chunkSize));
+
+        ArchiveInfo info = new ArchiveInfo();
+        info.compression = compression;
+        info.hotChunks = hot != null ? hotChunks : 0;
+        Map<String, String> entryDigests = new TreeMap<>();
+        Path chunkDirectory = Files.createTempDirectory("jpaxa-chunks-");
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, groups.size())));
+        try {
+            List<Future<CompressedChunk>> chunks = new ArrayList<>();
+            for (int i = 0; i < groups.size(); i++) {
+                List<TreeEntry> chunkEntries = groups.get(i);
+                Path file = chunkDirectory.resolve(i + "." + compression.extension);
+                chunks.add(executor.submit(() -> compressChunk(chunkEntries, file, reproducibleTime, compression, level, reproducible)));
+            }
+            // Written in order as they complete, the next chunks are compressed meanwhile
+            long offset = 0;
+            for (Future<CompressedChunk> future : chunks) {
+                CompressedChunk chunk;
+                try {
+                    chunk = future.get();
+                } catch (ExecutionException e) {
+                    throw e.getCause() instanceof IOException cause ? cause : new IOException(e.getCause());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while compressing chunks");
+                }
+                long length = Files.copy(chunk.file(), out);
+                Files.delete(chunk.file());
+                info.chunks.add(new Chunk(offset, length, chunk.info().uncompressedSize, chunk.info().integrity.size()));
+                offset += length;
+                info.add(chunk.info());
+                entryDigests.putAll(chunk.entryDigests());
+            }
+        } finally {
+            executor.shutdownNow();
+            deleteDirectory(chunkDirectory);
+        }
+
+        // The end of archive records, compressed on their own like the chunks
+        CountingOutputStream counter;
+        try (TarArchiveOutputStream tos = new TarArchiveOutputStream(counter = new CountingOutputStream(compression.compress(new KeepOpenOutputStream(out), level, 1, reproducible)), TarConstants.DEFAULT_RCDSIZE)) {
+            tos.finish();
+        }
+        info.uncompressedSize += counter.getBytesWritten();
+        out.flush();
+
+        MessageDigest contentDigest = sha256();
+        entryDigests.forEach((path, digest) -> contentDigest.update((path + "\0" + digest + "\n").getBytes(StandardCharsets.UTF_8)));
+        info.contentDigest = contentDigest.digest();
+        return info;
+    }
+
+    /** Splits entries in order into groups of about chunkSize bytes, between entries. */
+    private static List<List<TreeEntry>> chunkGroups(List<TreeEntry> entries, long chunkSize) throws IOException {
+        List<List<TreeEntry>> groups = new ArrayList<>();
+        List<TreeEntry> group = new ArrayList<>();
+        long groupSize = 0;
+        for (TreeEntry entry : entries) {
+            long size = TarConstants.DEFAULT_RCDSIZE + (entry.linkName() == null && Files.isRegularFile(entry.source()) ? Files.size(entry.source()) : 0);
+            if (!group.isEmpty() && groupSize + size > chunkSize) {
+                groups.add(group);
+                group = new ArrayList<>();
+                groupSize = 0;
+            }
+            group.add(entry);
+            groupSize += size;
+        }
+        if (!group.isEmpty()) {
+            groups.add(group);
+        }
+        return groups;
+    }
+
+    /**
+     * The paths of a --startup-profile: one per line, relative to the input directory, or absolute paths into an
+     * extraction directory as recorded from a trial run (e.g. with strace or an agent). Blank lines and lines
+     * starting with # are ignored.
+     */
+    static Set<String> readStartupProfile(Path file) throws IOException {
+        Pattern extracted = Pattern.compile(".*/jpaxa/applications/.+?/\\d+/");
+        Set<String> paths = new LinkedHashSet<>();
+        for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+            String path = line.trim().replace('\\', '/');
+            if (path.isEmpty() || path.startsWith("#")) {
+                continue;
+            }
+            path = extracted.matcher(path).replaceFirst("");
+            path = path.replaceAll("^\\./", "").replaceAll("/+$", "");
+            if (!path.isEmpty() && !path.startsWith("/")) {
+                paths.add(path);
+            }
+        }
+        return paths;
+    }
+
+    private record CompressedChunk(Path file, ArchiveInfo info, Map<String, String> entryDigests) {}
+
+    /** Writes the tar records of entries, without the end of archive records, compressed into file. */
+    private static CompressedChunk compressChunk(List<TreeEntry> entries, Path file, FileTime reproducibleTime, Compression compression, Integer level, boolean reproducible) throws IOException {
+        ArchiveInfo info = new ArchiveInfo();
+        Map<String, String> entryDigests = new HashMap<>();
+        try (OutputStream stream = new BufferedOutputStream(Files.newOutputStream(file))) {
+            // One stream per chunk: the chunks are what is compressed in parallel
+            OutputStream cos = compression.compress(stream, level, 1, reproducible);
+            CountingOutputStream counter = new CountingOutputStream(cos);
+            // A block of one record, so nothing but the entries' own records is written
+            TarArchiveOutputStream tos = new TarArchiveOutputStream(counter, TarConstants.DEFAULT_RCDSIZE);
+            tos.setLongFileMode(TarArchiveOutputStream.LONGFILE_POSIX);
+            for (TreeEntry entry : entries) {
+                writeEntry(tos, entry, reproducibleTime, null, info, entryDigests);
+            }
+            tos.flush();
+            info.uncompressedSize = counter.getBytesWritten();
+            // Closing the tar stream would append the end of archive records, close the codec below it instead
+            cos.close();
+        }
+        return new CompressedChunk(file, info, entryDigests);
+    }
+
+    /** Writes one entry to tos, counting it in info and recording its digest, as a hard link when it duplicates an earlier file. */
+    private static void writeEntry(TarArchiveOutputStream tos, TreeEntry treeEntry, FileTime reproducibleTime, Duplicate duplicate,
+                                   ArchiveInfo info, Map<String, String> entryDigests) throws IOException {
+        Path source = treeEntry.source();
+        String targetPath = treeEntry.name();
+        
+        // Ensure path doesn't start with / and is not empty
+        if (targetPath.isEmpty() || targetPath.equals("/")) {
+            return;
+        }
+        
+        TarArchiveEntry entry = tarEntry(treeEntry, reproducibleTime);
+        if (entry.isSymbolicLink()) {
+            tos.putArchiveEntry(entry);
+            tos.closeArchiveEntry();
+            entryDigests.put(targetPath, Integer.toOctalString(entry.getMode()) + " link:" + entry.getLinkName());
+            info.integrity.add(IntegrityEntry.of(entry, null));
+            info.symlinks++;
+            return;
+        }
+        if (duplicate != null) {
+            // Same content as a file already archived, extracted as a hard link to it
+            TarArchiveEntry link = new TarArchiveEntry(targetPath, TarConstants.LF_LINK);
+            link.setLinkName(duplicate.original());
+            link.setMode(entry.getMode());
+            link.setModTime(entry.getModTime());
+            tos.putArchiveEntry(link);
+            tos.closeArchiveEntry();
+            entryDigests.put(targetPath, Integer.toOctalString(entry.getMode()) + " " + duplicate.sha256());
+            info.integrity.add(IntegrityEntry.of(entry, duplicate.sha256()));
+            info.files++;
+            info.linkedFiles++;
+            info.linkedSize += entry.getSize();
+            return;
+        }
+        if (entry.isDirectory()) {
+            info.directories++;
+        } else {
+            info.files++;
+            info.contentSize += entry.getSize();
+        }
+        
+        tos.putArchiveEntry(entry);
+        
+        String contentDigest = "";
+        if (Files.isRegularFile(source)) {
+            MessageDigest digest = sha256();
+            try (InputStream in = new DigestInputStream(Files.newInputStream(source), digest)) {
+                in.transferTo(tos);
+            }
+            contentDigest = HexFormat.of().formatHex(digest.digest());
+        }
+        entryDigests.put(targetPath, Integer.toOctalString(entry.getMode()) + " " + contentDigest);
+        info.integrity.add(IntegrityEntry.of(entry, contentDigest));
+        
+        tos.closeArchiveEntry();
+    }
+
+    /**
+     * Modification time stored in reproducible archives: entries newer than SOURCE_DATE_EPOCH are clamped
+     * to it, see https://reproducible-builds.org/specs/source-date-epoch/. Without it every entry gets
+     * 1980-01-01, the earliest time zip based formats such as jars can represent.
+     */
+    private static FileTime reproducibleModificationTime() {
+        String sourceDateEpoch = System.getenv("SOURCE_DATE_EPOCH");
+        if (sourceDateEpoch != null && !sourceDateEpoch.isBlank()) {
+            try {
+                return FileTime.from(Long.parseLong(sourceDateEpoch.trim()), TimeUnit.SECONDS);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("SOURCE_DATE_EPOCH isn't a number of seconds: " + sourceDateEpoch);
+            }
+        }
+        return FileTime.from(Instant.parse("1980-01-01T00:00:00Z"));
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Like writeTarball, but every entry is compressed on its own into a member kept in cacheDir, keyed by its path,
+     * size, modification time and executable bit. Tools pin modification times, so a file is only taken as unchanged
+     * when its inode and change time, which they can't set, are the same too, or else when its SHA-256 still matches,
+     * reading it being far cheaper than compressing it. Concatenated members decompress to a single tar stream with every
+     * codec (gzip members, zstd frames, xz streams, plain tar), so entries that didn't change are copied from the cache
+     * and only changed ones are read and compressed again, in parallel. Entries share no compression dictionary, so
+     * the archive is larger than with a single stream: this is meant for edit-package-test loops, not for releases.
+     */
+    static ArchiveInfo writeTarballIncremental(List<TreeEntry> treeEntries, OutputStream out, Compression compression, Integer level, int threads, boolean reproducible, Path cacheDir) throws Exception {
+        FileTime reproducibleTime = reproducible ? reproducibleModificationTime() : null;
+        Path members = createDirectories(cacheDir.resolve("members"));
+        // One build at a time per cache, another build waits here
+        try (FileChannel lockChannel = FileChannel.open(cacheDir.resolve("lock"), StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            FileLock lock = lockChannel.lock();
+            try {
+                Path indexPath = cacheDir.resolve("index.json");
+                String settings = compression.id() + " " + level + (reproducible ? " reproducible " + reproducibleTime.toMillis() : "");
+                EntryCache previous = EntryCache.read(indexPath, settings);
+                EntryCache cache = new EntryCache();
+                cache.settings = settings;
+
+                List<TreeEntry> paths = new ArrayList<>(treeEntries);
+                if (reproducible) {
+                    paths.sort(Comparator.comparing(TreeEntry::name));
+                }
+                ArchiveInfo info = new ArchiveInfo();
+                info.compression = compression;
+                Map<String, String> entryDigests = new TreeMap<>();
+                List<String> names = new ArrayList<>();
+                List<Future<CachedEntry>> entries = new ArrayList<>();
+                ExecutorService executor = Executors.newFixedThreadPool(threads);
+                try {
+                    for (TreeEntry treeEntry : paths) {
+                        Path source = treeEntry.source();
+                        String targetPath = treeEntry.name();
+                        if (targetPath.isEmpty() || targetPath.equals("/")) {
+                            continue;
+                        }
+                        // Modification times in milliseconds: copies keep no more than microseconds, tar headers seconds
+                        String key;
+                        String change = null;
+                        if (treeEntry.linkName() != null) {
+                            key = "l " + Files.getLastModifiedTime(source, LinkOption.NOFOLLOW_LINKS).to(TimeUnit.NANOSECONDS) + " " + treeEntry.linkName();
+                        } else {
+                            BasicFileAttributes attributes = Files.readAttributes(source, BasicFileAttributes.class);
+                            key = (attributes.isDirectory() ? "d " : "f ") + attributes.size() + " "
+                                + attributes.lastModifiedTime().toMillis() + " " + Files.isExecutable(source);
+                            if (attributes.isRegularFile()) {
+                                change = changeSignal(source);
+                            }
+                        }
+                        CachedEntry cached = previous.entries.get(targetPath);
+                        names.add(targetPath);
+                        if (cached != null && cached.key.equals(key) && Files.exists(members.resolve(cached.member))) {
+                            if (!key.startsWith("f ") || change != null && change.equals(cached.change)) {
+                                entries.add(CompletableFuture.completedFuture(cached));
+                            } else {
+                                // E.g. copied into a build directory, or written with a pinned modification time
+                                String currentChange = change;
+                                entries.add(executor.submit(() -> {
+                                    if (cached.sha256.equals(fileSha256(source))) {
+                                        cached.change = currentChange;
+                                        return cached;
+                                    }
+                                    return compressEntry(treeEntry, key, currentChange, reproducibleTime, compression, level, members);
+                                }));
+                            }
+                        } else {
+                            String currentChange = change;
+                            entries.add(executor.submit(() -> compressEntry(treeEntry, key, currentChange, reproducibleTime, compression, level, members)));
+                        }
+                    }
+
+                    for (int i = 0; i < names.size(); i++) {
+                        CachedEntry entry;
+                        try {
+                            entry = entries.get(i).get();
+                        } catch (ExecutionException e) {
+                            throw e.getCause() instanceof Exception cause ? cause : e;
+                        }
+                        cache.entries.put(names.get(i), entry);
+                        if (entry == previous.entries.get(names.get(i))) {
+                            info.reusedEntries++;
+                        }
+                        Files.copy(members.resolve(entry.member), out);
+                        if (entry.directory) {
+                            info.directories++;
+                        } else if (entry.symlink) {
+                            info.symlinks++;
+                        } else {
+                            info.files++;
+                            info.contentSize += entry.size;
+                        }
+                        info.uncompressedSize += entry.tarSize;
+                        entryDigests.put(names.get(i), Integer.toOctalString(entry.mode) + (entry.symlink ? " link:" : " ") + entry.sha256);
+                        info.integrity.add(entry.directory ? new IntegrityEntry(names.get(i), "directory", entry.mode, 0, null, null)
+                            : entry.symlink ? new IntegrityEntry(names.get(i), "symlink", entry.mode, 0, null, entry.sha256)
+                            : new IntegrityEntry(names.get(i), "file", entry.mode, entry.size, entry.sha256, null));
+                    }
+
+                    // The end of archive records, compressed on their own like the entries
+                    ByteArrayOutputStream end = new ByteArrayOutputStream();
+                    CountingOutputStream counter;
+                    try (TarArchiveOutputStream tos = new TarArchiveOutputStream(counter = new CountingOutputStream(compression.compress(end, level, 1, false)), TarConstants.DEFAULT_RCDSIZE)) {
+                        tos.finish();
+                        info.uncompressedSize += counter.getBytesWritten();
+                    }
+                    out.write(end.toByteArray());
+                } finally {
+                    executor.shutdownNow();
+                }
+
+                cache.write(indexPath);
+                // Drop the members of entries that changed or disappeared
+                Set<String> referenced = new HashSet<>();
+                cache.entries.values().forEach(entry -> referenced.add(entry.member));
+                try (Stream<Path> stored = Files.list(members)) {
+                    for (Path member : stored.collect(Collectors.toList())) {
+                        if (!referenced.contains(member.getFileName().toString())) {
+                            Files.deleteIfExists(member);
+                        }
+                    }
+                }
+
+                MessageDigest contentDigest = sha256();
+                entryDigests.forEach((path, digest) -> contentDigest.update((path + "\0" + digest + "\n").getBytes(StandardCharsets.UTF_8)));
+                info.contentDigest = contentDigest.digest();
+                return info;
+            } finally {
+                lock.release();
+            }
+        }
+    }
+
+    /** The inode and change time of file, which no tool sets, or null where the file system doesn't tell them. */
+    private static String changeSignal(Path file) throws IOException {
+        try {
+            Map<String, Object> attributes = Files.readAttributes(file, "unix:ino,ctime");
+            return attributes.get("ino") + " " + ((FileTime) attributes.get("ctime")).to(TimeUnit.NANOSECONDS);
+        } catch (UnsupportedOperationException | IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private static String fileSha256(Path file) throws IOException {
+        MessageDigest digest = sha256();
+        try (InputStream in = new DigestInputStream(Files.newInputStream(file), digest)) {
+            in.transferTo(OutputStream.nullOutputStream());
+        }
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    /** Writes the tar records of a single entry, without the end of archive records, compressed into its own member. */
+    private static CachedEntry compressEntry(TreeEntry treeEntry, String key, String change, FileTime reproducibleTime, Compression compression, Integer level, Path members) throws IOException {
+        Path source = treeEntry.source();
+        TarArchiveEntry entry = tarEntry(treeEntry, reproducibleTime);
+        CachedEntry cached = new CachedEntry();
+        cached.key = key;
+        cached.change = change;
+        cached.mode = entry.getMode();
+        cached.directory = entry.isDirectory();
+        cached.symlink = entry.isSymbolicLink();
+        cached.size = entry.getSize();
+        cached.member = HexFormat.of().formatHex(sha256().digest((treeEntry.name() + "\0" + key).getBytes(StandardCharsets.UTF_8))) + "." + compression.extension;
+        // The digest of a symlink is its target
+        cached.sha256 = cached.symlink ? entry.getLinkName() : "";
+
+        Path partial = members.resolve(cached.member + ".partial-" + UUID.randomUUID());
+        try {
+            try (OutputStream file = new BufferedOutputStream(Files.newOutputStream(partial))) {
+                // Each member is a single compression stream: threads would only add overhead for one entry
+                OutputStream cos = compression.compress(file, level, 1, false);
+                CountingOutputStream counter = new CountingOutputStream(cos);
+                // A block of one record, so nothing but the entry's own records is written
+                TarArchiveOutputStream tos = new TarArchiveOutputStream(counter, TarConstants.DEFAULT_RCDSIZE);
+                tos.setLongFileMode(TarArchiveOutputStream.LONGFILE_POSIX);
+                tos.putArchiveEntry(entry);
+                if (!cached.symlink && Files.isRegularFile(source)) {
+                    MessageDigest digest = sha256();
+                    try (InputStream in = new DigestInputStream(Files.newInputStream(source), digest)) {
+                        in.transferTo(tos);
+                    }
+                    cached.sha256 = HexFormat.of().formatHex(digest.digest());
+                }
+                tos.closeArchiveEntry();
+                tos.flush();
+                cached.tarSize = counter.getBytesWritten();
+                // Closing the tar stream would append the end of archive records, close the codec below it instead
+                cos.close();
+            }
+            Files.move(partial, members.resolve(cached.member), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(partial);
+        }
+        return cached;
+    }
+
+    /** The index of an --entry-cache directory. Members are only reused with the same codec settings. */
+    static class EntryCache {
+        String settings;
+        Map<String, CachedEntry> entries = new HashMap<>();
+
+        static EntryCache read(Path index, String settings) {
+            try (Reader reader = Files.newBufferedReader(index, StandardCharsets.UTF_8)) {
+                EntryCache cache = new Gson().fromJson(reader, EntryCache.class);
+                if (cache != null && settings.equals(cache.settings) && cache.entries != null) {
+                    return cache;
+                }
+            } catch (IOException | JsonParseException e) {
+                // Missing or unreadable, start over
+            }
+            return new EntryCache();
+        }
+
+        void write(Path index) throws IOException {
+            Path partial = index.resolveSibling(index.getFileName() + ".partial");
+            Files.writeString(partial, new Gson().toJson(this));
+            Files.move(partial, index, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+    }
+
+    static class CachedEntry {
+        /** Kind, size, modification time and executable bit of the source when the member was written. */
+        String key;
+        /** Inode and change time of a file source, see changeSignal. */
+        String change;
+        String member;
+        int mode;
+        boolean directory;
+        boolean symlink;
+        long size;
+        long tarSize;
+        String sha256;
+    }
+
+    /** original is the name of the first file with that content in the archive. */
+    private record Duplicate(String original, String sha256) {}
+
+    /**
+     * For --dedup: the files with the same size, executable bit and content as a file earlier in paths, mapped to
+     * that first file. Only files sharing their size with another one are hashed, so only those are read twice.
+     */
+    private static Map<String, Duplicate> findDuplicates(List<TreeEntry> entries) throws IOException {
+        Map<String, List<TreeEntry>> candidates = new LinkedHashMap<>();
+        for (TreeEntry entry : entries) {
+            Path path = entry.source();
+            if (entry.linkName() == null && Files.isRegularFile(path) && Files.size(path) > 0) {
+                candidates.computeIfAbsent(Files.size(path) + (Files.isExecutable(path) ? " x" : ""), key -> new ArrayList<>()).add(entry);
+            }
+        }
+        Map<String, Duplicate> duplicates = new HashMap<>();
+        for (List<TreeEntry> group : candidates.values()) {
+            if (group.size() < 2) {
+                continue;
+            }
+            Map<String, String> firstByDigest = new HashMap<>();
+            for (TreeEntry entry : group) {
+                MessageDigest digest = sha256();
+                try (InputStream in = new DigestInputStream(Files.newInputStream(entry.source()), digest)) {
+                    in.transferTo(OutputStream.nullOutputStream());
+                }
+                String sha256 = HexFormat.of().formatHex(digest.digest());
+                String first = firstByDigest.putIfAbsent(sha256, entry.name());
+                if (first != null) {
+                    duplicates.put(entry.name(), new Duplicate(first, sha256));
+                }
+            }
+        }
+        return duplicates;
+    }
+
+    /** What --repack-jars did, for --stats: the jars found, those rewritten and the size of all jars before and after. */
+    static class RepackInfo {
+        int jars;
+        int repacked;
+        long originalSize;
+        long repackedSize;
+    }
+
+    /**
+     * For --repack-jars: entries with every .jar rewritten with stored entries into dir, so the archive codec compresses
+     * the classes of all jars in one context instead of deflated data it can't shrink. The rewritten jars keep their
+     * entries in order with their names, times and extra fields, so manifests and signatures, computed on the
+     * uncompressed content, stay valid.
+     */
+    static List<TreeEntry> repackJars(List<TreeEntry> entries, Path dir, int threads, RepackInfo info) throws Exception {
+        List<Integer> jars = new ArrayList<>();
+        for (int i = 0; i < entries.size(); i++) {
+            TreeEntry entry = entries.get(i);
+            if (entry.linkName() == null && entry.name().toLowerCase(Locale.ROOT).endsWith(".jar") && Files.isRegularFile(entry.source())) {
+                jars.add(i);
+            }
+        }
+        List<TreeEntry> repacked = new ArrayList<>(entries);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<Boolean>> results = new ArrayList<>();
+            for (int index : jars) {
+                results.add(executor.submit(() -> repackJar(entries.get(index).source(), dir.resolve(index + ".jar"))));
+            }
+            for (int i = 0; i < jars.size(); i++) {
+                boolean rewritten;
+                try {
+                    rewritten = results.get(i).get();
+                } catch (ExecutionException e) {
+                    throw e.getCause() instanceof Exception cause ? cause : e;
+                }
+                int index = jars.get(i);
+                TreeEntry entry = entries.get(index);
+                Path target = dir.resolve(index + ".jar");
+                info.jars++;
+                info.originalSize += Files.size(entry.source());
+                if (rewritten) {
+                    info.repacked++;
+                    info.repackedSize += Files.size(target);
+                    repacked.set(index, new TreeEntry(target, entry.name(), null));
+                } else {
+                    info.repackedSize += Files.size(entry.source());
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        return repacked;
+    }
+
+    /**
+     * Rewrites the jar source to target with stored entries, with the modification time and executable bit of source.
+     * Returns false, writing nothing, for files that aren't zips, that have data before the first entry like
+     * executable jars starting with a script, that a rewrite can't reproduce or that are stored already.
+     */
+    static boolean repackJar(Path source, Path target) throws IOException {
+        try (InputStream in = Files.newInputStream(source)) {
+            byte[] signature = in.readNBytes(4);
+            if (!Arrays.equals(signature, new byte[] {'P', 'K', 3, 4})) {
+                return false;
+            }
+        }
+        try (ZipFile zip = new ZipFile(source.toFile())) {
+            List<? extends ZipEntry> zipEntries = Collections.list(zip.entries());
+            if (zipEntries.stream().allMatch(entry -> entry.getMethod() == ZipEntry.STORED)) {
+                return false;
+            }
+            try (ZipOutputStream out = new ZipOutputStream(new BufferedOutputStream(Files.newOutputStream(target)))) {
+                if (zip.getComment() != null) {
+                    out.setComment(zip.getComment());
+                }
+                for (ZipEntry entry : zipEntries) {
+                    // Copies the name, times, extra field, comment, size and CRC
+                    ZipEntry stored = new ZipEntry(entry);
+                    stored.setMethod(ZipEntry.STORED);
+                    stored.setCompressedSize(entry.getSize());
+                    out.putNextEntry(stored);
+                    try (InputStream in = zip.getInputStream(entry)) {
+                        in.transferTo(out);
+                    }
+                    out.closeEntry();
+                }
+            }
+        } catch (ZipException e) {
+            // Damaged, or with duplicate names
+            Files.deleteIfExists(target);
+            return false;
+        }
+        Files.setLastModifiedTime(target, Files.getLastModifiedTime(source));
+        if (Files.isExecutable(source)) {
+            target.toFile().setExecutable(true);
+        }
+        return true;
+    }
+
+    /** Flushes instead of closing, so the codec streams can be closed to write their trailers without closing the sink below. */
+    static class KeepOpenOutputStream extends FilterOutputStream {
+        KeepOpenOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.flush();
+        }
+    }
+
+    /** The tar entry for source, normalized for --reproducible when reproducibleTime is set. */
+    private static TarArchiveEntry tarEntry(TreeEntry treeEntry, FileTime reproducibleTime) throws IOException {
+        Path source = treeEntry.source();
+        String targetPath = treeEntry.name();
+        TarArchiveEntry entry;
+        if (treeEntry.linkName() != null) {
+            entry = new TarArchiveEntry(targetPath, TarConstants.LF_SYMLINK);
+            entry.setLinkName(treeEntry.linkName());
+            entry.setMode(0777);
+            entry.setModTime(Files.getLastModifiedTime(source, LinkOption.NOFOLLOW_LINKS));
+        } else {
+            // Create entry with relative path (not absolute), reading through symlinks that are followed
+            entry = new TarArchiveEntry(source.toFile(), targetPath);
+        }
+
+        if (entry.isSymbolicLink()) {
+            // Nothing but the name of the target
+        } else if (isDirectory(source)) {
+            entry.setMode(TarArchiveEntry.DEFAULT_DIR_MODE);
+        } else {
+            // Preserve executability: if the source file is executable, mark it as such
+            if (Files.isExecutable(source)) {
+                entry.setMode(0755);
+            } else {
+                entry.setMode(TarArchiveEntry.DEFAULT_FILE_MODE);
+            }
+            entry.setSize(Files.size(source));
+        }
+        if (reproducibleTime != null) {
+            if (entry.getLastModifiedDate().getTime() > reproducibleTime.toMillis()) {
+                entry.setModTime(reproducibleTime);
+            }
+            entry.setIds(0, 0);
+            entry.setUserName("");
+            entry.setGroupName("");
+        }
+        return entry;
+    }
+
+    /**
+     * An extracted path as the archive creates it. type is file, directory or symlink; size and sha256 are
+     * set for files and link for symlinks. Files archived as hard links with --dedup are files here.
+     */
+    record IntegrityEntry(String path, String type, int mode, long size, String sha256, String link) {
+        static IntegrityEntry of(TarArchiveEntry entry, String sha256) {
+            if (entry.isDirectory()) {
+                // Directory entries are named with a trailing slash
+                return new IntegrityEntry(entry.getName().replaceAll("/$", ""), "directory", entry.getMode(), 0, null, null);
+            }
+            if (entry.isSymbolicLink()) {
+                return new IntegrityEntry(entry.getName(), "symlink", entry.getMode(), 0, null, entry.getLinkName());
+            }
+            return new IntegrityEntry(entry.getName(), "file", entry.getMode(), entry.getSize(), sha256, null);
+        }
+    }
+
+    /**
+     * A chunk of a chunked archive: offset and length of its compressed bytes from the start of the archive, the size
+     * of the tar records it decompresses to and the number of entries in it.
+     */
+    record Chunk(long offset, long length, long size, int entries) {}
+
+    /** How the archive is laid out: a single compression stream, or chunks compressed independently. */
+    enum ArchiveLayout {
+        STREAM,
+        CHUNKED
+    }
+
+    /** What {@link #appendTarball} produced, recorded in the footer of every stub built from it. */
+    static class ArchiveInfo {
+        Compression compression;
+        /** Size of the tar stream before compression. */
+        long uncompressedSize;
+        long files;
+        long directories;
+        /** Sum of the sizes of the archived files. */
+        long contentSize;
+        /** Entries copied from the --entry-cache instead of compressed again. */
+        long reusedEntries;
+        /** Symlinks archived as symlinks. */
+        long symlinks;
+        /** Files archived as hard links to an identical file with --dedup, and their total size. */
+        long linkedFiles;
+        long linkedSize;
+        /** SHA-256 over the path, mode and content of every entry. */
+        byte[] contentDigest;
+        /** Every entry in archive order, what the launchers check the extracted files against. */
+        List<IntegrityEntry> integrity = new ArrayList<>();
+        /** The chunk index of --layout chunked, empty for a single stream. */
+        List<Chunk> chunks = new ArrayList<>();
+        /** The leading chunks holding the --startup-profile paths, the rest is extracted while the command runs. */
+        int hotChunks;
+
+        /** Counts the entries of part, a chunk written after the ones counted so far. */
+        void add(ArchiveInfo part) {
+            uncompressedSize += part.uncompressedSize;
+            files += part.files;
+            directories += part.directories;
+            symlinks += part.symlinks;
+            contentSize += part.contentSize;
+            integrity.addAll(part.integrity);
+        }
+
+        /** The integrity manifest stored after the archive: the JSON array of the entries, gzip compressed. */
+        byte[] integrityManifest() throws IOException {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            // GZIPOutputStream writes no modification time, so the manifest is reproducible
+            try (Writer writer = new OutputStreamWriter(new java.util.zip.GZIPOutputStream(bytes), StandardCharsets.UTF_8)) {
+                new Gson().toJson(integrity, writer);
+            }
+            return bytes.toByteArray();
+        }
+
+        /**
+         * Identifier derived from the archived content and the command, so rebuilding an unchanged
+         * application reuses the directory it was already extracted to.
+         */
+        String contentIdentifier(String baseName, List<String> command) {
+            MessageDigest digest = sha256();
+            digest.update(contentDigest);
+            for (String part : command) {
+                digest.update((part + "\0").getBytes(StandardCharsets.UTF_8));
+            }
+            return baseName + "/" + HexFormat.of().formatHex(digest.digest()).substring(0, 16);
+        }
+    }
+
+    /** Codecs available for the embedded archive. The id is recorded in the footer so launchers pick the matching decoder. */
+    enum Compression {
+        GZIP("tar.gz", "tar -xz", true),
+        ZSTD("tar.zst", "zstd -dc | tar -x", false),
+        XZ("tar.xz", "xz -dc | tar -x", false),
+        NONE("tar", "tar -x", true);
+
+        final String extension;
+        final String shellExtractCommand;
+        /** The binary stubs decode it with the Go standard library, the shell stub uses the tools of the system. */
+        final boolean binaryStub;
+
+        Compression(String extension, String shellExtractCommand, boolean binaryStub) {
+            this.extension = extension;
+            this.shellExtractCommand = shellExtractCommand;
+            this.binaryStub = binaryStub;
+        }
+
+        String id() {
+            return name().toLowerCase(Locale.ROOT);
+        }
+
+        static Compression fromId(String id) {
+            // Binaries built before the codec was recorded in the footer are always gzip
+            return id == null ? GZIP : valueOf(id.toUpperCase(Locale.ROOT));
+        }
+
+        void validateBinaryStub() {
+            if (!binaryStub) {
+                throw new IllegalArgumentException("--compression %s is only supported by the shell stub (.sh), the binary stubs can't decode it".formatted(id()));
+            }
+        }
+
+        void validateLevel(Integer level) {
+            if (level == null) {
+                return;
+            }
+            int min = this == ZSTD ? 1 : 0;
+            int max = switch (this) {
+                case GZIP, XZ -> 9;
+                case ZSTD -> 22;
+                case NONE -> throw new IllegalArgumentException("--level can't be used with --compression none");
+            };
+            if (level < min || level > max) {
+                throw new IllegalArgumentException("--level for %s must be between %d and %d: %d".formatted(id(), min, max, level));
+            }
+        }
+
+        /**
+         * Wraps out in this codec. Reproducible output must not depend on the thread count, so gzip then always
+         * takes the block-based path (its fixed header has no name or time) and zstd always runs with workers.
+         */
+        OutputStream compress(OutputStream out, Integer level, int threads, boolean reproducible) throws IOException {
+            switch (this) {
+                case GZIP:
+                    int gzipLevel = level != null ? level : Deflater.DEFAULT_COMPRESSION;
+                    if (threads > 1 || reproducible) {
+                        return new ParallelGzipOutputStream(out, gzipLevel, threads);
+                    }
+                    GzipParameters parameters = new GzipParameters();
+                    parameters.setCompressionLevel(gzipLevel);
+                    return new GzipCompressorOutputStream(out, parameters);
+                case ZSTD:
+                    ZstdOutputStream zstd = new ZstdOutputStream(out, level != null ? level : 3);
+                    zstd.setChecksum(true);
+                    if (threads > 1 || reproducible) {
+                        zstd.setWorkers(threads);
+                    }
+                    return zstd;
+                case XZ:
+                    return new XZCompressorOutputStream(out, level != null ? level : 6);
+                default:
+                    return out;
+            }
+        }
+
+        InputStream decompress(InputStream in) throws IOException {
+            return switch (this) {
+                case GZIP -> new GzipCompressorInputStream(in, true);
+                case ZSTD -> new ZstdCompressorInputStream(in);
+                case XZ -> new XZCompressorInputStream(in, true);
+                case NONE -> in;
+            };
+        }
+    }
+    
+    /**
+     * Gzip output stream that deflates fixed-size blocks on a thread pool, in the style of pigz.
+     * Every block is primed with the last 32 KiB of the block before it and ends on a sync flush,
+     * so the result is a single standard gzip member that any gzip reader can decode.
+     */
+    static class ParallelGzipOutputStream extends OutputStream {
+        private static final int BLOCK_SIZE = 1024 * 1024;
+        private static final int DICTIONARY_SIZE = 32 * 1024;
+
+        private final OutputStream out;
+        private final int level;
+        private final ExecutorService executor;
+        private final int maxPending;
+        private final Deque<Future<byte[]>> pending = new ArrayDeque<>();
+        private final CRC32 crc = new CRC32();
+        private byte[] block = new byte[BLOCK_SIZE];
+        private int blockLength;
+        private byte[] dictionary;
+        private long totalIn;
+        private boolean closed;
+
+        ParallelGzipOutputStream(OutputStream out, int level, int threads) throws IOException {
+            this.out = out;
+            this.level = level;
+            this.maxPending = threads * 2;
+            this.executor = Executors.newFixedThreadPool(threads, runnable -> {
+                Thread thread = new Thread(runnable, "jpaxa-gzip");
+                thread.setDaemon(true);
+                return thread;
+            });
+            // Fixed header: deflate, no file name, no modification time, unknown OS
+            out.write(new byte[] {0x1f, (byte) 0x8b, 8, 0, 0, 0, 0, 0, 0, (byte) 0xff});
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            crc.update(b, off, len);
+            totalIn += len;
+            while (len > 0) {
+                int n = Math.min(len, BLOCK_SIZE - blockLength);
+                System.arraycopy(b, off, block, blockLength, n);
+                blockLength += n;
+                off += n;
+                len -= n;
+                if (blockLength == BLOCK_SIZE) {
+                    submit(false);
+                }
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                submit(true);
+                while (!pending.isEmpty()) {
+                    writeOldest();
+                }
+                long trailer = (crc.getValue() & 0xffffffffL) | (totalIn << 32);
+                for (int i = 0; i < 8; i++) {
+                    out.write((int) (trailer >>> (8 * i)));
+                }
+            } finally {
+                executor.shutdownNow();
+                out.close();
+            }
+        }
+
+        private void submit(boolean last) throws IOException {
+            byte[] input = block;
+            int length = blockLength;
+            byte[] previous = dictionary;
+            pending.add(executor.submit(() -> deflate(input, length, previous, last)));
+            dictionary = Arrays.copyOfRange(input, Math.max(0, length - DICTIONARY_SIZE), length);
+            block = new byte[BLOCK_SIZE];
+            blockLength = 0;
+            while (pending.size() >= maxPending) {
+                writeOldest();
+            }
+        }
+
+        private void writeOldest() throws IOException {
+            try {
+                out.write(pending.removeFirst().get());
+            } catch (ExecutionException e) {
+                throw new IOException("Failed to compress block", e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while compressing");
+            }
+        }
+
+        private byte[] deflate(byte[] input, int length, byte[] dictionary, boolean last) {
+            Deflater deflater = new Deflater(level, true);
+            try {
+                if (dictionary != null && dictionary.length > 0) {
+                    deflater.setDictionary(dictionary);
+                }
+                deflater.setInput(input, 0, length);
+                ByteArrayOutputStream result = new ByteArrayOutputStream(length / 2 + 64);
+                byte[] buffer = new byte[64 * 1024];
+                if (last) {
+                    deflater.finish();
+                    while (!deflater.finished()) {
+                        result.write(buffer, 0, deflater.deflate(buffer));
+                    }
+                } else {
+                    // A sync flush ends the block on a byte boundary without marking the stream as finished
+                    int n;
+                    do {
+                        n = deflater.deflate(buffer, 0, buffer.length, Deflater.SYNC_FLUSH);
+                        result.write(buffer, 0, n);
+                    } while (n == buffer.length);
+                }
+                return result.toByteArray();
+            } finally {
+                deflater.end();
+            }
+        }
+    }
+
+    /**
+     * Appends an already compressed archive to the output, letting the OS copy the bytes
+     * directly between the two files where it can.
+     */
+    private void appendArchive(Path archive, Path outputPath) throws IOException {
+        try (FileChannel source = FileChannel.open(archive, StandardOpenOption.READ);
+             FileChannel target = FileChannel.open(outputPath, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            long size = source.size();
+            long position = 0;
+            while (position < size) {
+                position += source.transferTo(position, size - position, target);
+            }
+        }
+    }
+    
+    /**
+     * Exclude rules with .gitignore semantics, compiled once per build. A pattern without a slash matches
+     * a name at any depth, a leading or inner slash anchors it to the input directory, a trailing slash
+     * only matches directories, {@code **} matches across directories and a leading {@code !} re-includes
+     * what an earlier pattern excluded. As with .gitignore nothing below an excluded directory can be
+     * re-included, which is what allows the walk to skip excluded directories without visiting them.
+     * A backslash escapes the character after it, e.g. {@code \#notes}, {@code \!keep} or a trailing {@code \ },
+     * any other backslash is taken for a Windows separator.
+     */
+    static class ExcludeMatcher {
+        static final String IGNORE_FILE = ".jpaxaignore";
+        private static final String ESCAPABLE = " #!*?[]\\";
+        static final ExcludeMatcher NONE = new ExcludeMatcher();
+
+        private record Rule(Pattern pattern, boolean negated, boolean directoryOnly) {}
+
+        private final List<Rule> rules = new ArrayList<>();
+
+        /** Only the given patterns. */
+        static ExcludeMatcher of(List<String> patterns) {
+            ExcludeMatcher matcher = new ExcludeMatcher();
+            patterns.forEach(matcher::add);
+            return matcher;
+        }
+
+        /**
+         * The .jpaxaignore file itself, left out unless re-included, then the patterns from it, if any, followed by
+         * the given ones.
+         */
+        static ExcludeMatcher of(Path input, List<String> patterns) throws IOException {
+            ExcludeMatcher matcher = new ExcludeMatcher();
+            matcher.add("/" + IGNORE_FILE);
+            Path ignoreFile = input.resolve(IGNORE_FILE);
+            if (Files.isRegularFile(ignoreFile)) {
+                Files.readAllLines(ignoreFile).forEach(matcher::add);
+            }
+            patterns.forEach(matcher::add);
+            return matcher;
+        }
+
+        private void add(String line) {
+            // Trailing spaces are dropped unless escaped, leading ones are part of the name as with .gitignore
+            int end = line.length();
+            while (end > 0 && line.charAt(end - 1) == ' ' && !isEscaped(line, end - 1)) {
+                end--;
+            }
+            StringBuilder normalized = new StringBuilder();
+            for (int i = 0; i < end; i++) {
+                char c = line.charAt(i);
+                if (c == '\\' && i + 1 < end && ESCAPABLE.indexOf(line.charAt(i + 1)) >= 0) {
+                    normalized.append(c).append(line.charAt(++i));
+                } else {
+                    normalized.append(c == '\\' ? '/' : c);
+                }
+            }
+            String pattern = normalized.toString();
+            if (pattern.isEmpty() || pattern.startsWith("#")) {
+                return;
+            }
+            boolean negated = pattern.startsWith("!");
+            if (negated) {
+                pattern = pattern.substring(1);
+            }
+            if (pattern.startsWith("./")) {
+                pattern = pattern.substring(2);
+            }
+            boolean directoryOnly = pattern.endsWith("/");
+            while (pattern.endsWith("/")) {
+                pattern = pattern.substring(0, pattern.length() - 1);
+            }
+            boolean anchored = pattern.contains("/");
+            if (pattern.startsWith("/")) {
+                pattern = pattern.substring(1);
+            }
+            if (pattern.isEmpty()) {
+                return;
+            }
+            String regex = (anchored ? "" : "(?:.*/)?") + globToRegex(pattern);
+            rules.add(new Rule(Pattern.compile(regex), negated, directoryOnly));
+        }
+
+        /** Whether the character at index is preceded by an odd number of backslashes. */
+        private static boolean isEscaped(String line, int index) {
+            int backslashes = 0;
+            while (index - backslashes > 0 && line.charAt(index - backslashes - 1) == '\\') {
+                backslashes++;
+            }
+            return backslashes % 2 == 1;
+        }
+
+        /** Whether the path, relative to the input directory and separated by slashes, is excluded. The last matching rule wins. */
+        boolean isExcluded(String relativePath, boolean directory) {
+            boolean excluded = false;
+            for (Rule rule : rules) {
+                if (rule.negated() == excluded && (directory || !rule.directoryOnly()) && rule.pattern().matcher(relativePath).matches()) {
+                    excluded = !rule.negated();
+                }
+            }
+            return excluded;
+        }
+
+        private static String globToRegex(String glob) {
+            StringBuilder regex = new StringBuilder();
+            for (int i = 0; i < glob.length(); i++) {
+                char c = glob.charAt(i);
+                if (c == '\\' && i + 1 < glob.length()) {
+                    regex.append(Pattern.quote(String.valueOf(glob.charAt(++i))));
+                } else if (c == '*' && i + 1 < glob.length() && glob.charAt(i + 1) == '*') {
+                    i++;
+                    if (i + 1 < glob.length() && glob.charAt(i + 1) == '/') {
+                        i++;
+                        regex.append("(?:.*/)?");
+                    } else {
+                        regex.append(".*");
+                    }
+                } else if (c == '*') {
+                    regex.append("[^/]*");
+                } else if (c == '?') {
+                    regex.append("[^/]");
+                } else if (c == '[' && glob.indexOf(']', i + 1) > i + 1) {
+                    int close = glob.indexOf(']', i + 1);
+                    String characterClass = glob.substring(i + 1, close);
+                    if (characterClass.startsWith("!")) {
+                        characterClass = "^" + characterClass.substring(1);
+                    }
+                    regex.append('[').append(characterClass.replace("[", "\\[")).append(']');
+                    i = close;
+                } else {
+                    if ("\\.[]{}()+-^$|".indexOf(c) >= 0) {
+                        regex.append('\\');
+                    }
+                    regex.append(c);
+                }
+            }
+            return regex.toString();
+        }
+    }
+
+    /** What to do with a symlink pointing outside the input tree. */
+    enum SymlinkPolicy {
+        /** Archive what it points to, as if it was part of the input. */
+        FOLLOW,
+        /** Archive the symlink as is, it's resolved on the machine running the executable. */
+        PRESERVE,
+        /** Leave it out. */
+        SKIP,
+        /** Fail the build. */
+        ERROR
+    }
+
+    /**
+     * A path to archive: source is read, name is its path in the archive, and linkName is set when it is
+     * archived as a symlink to linkName.
+     */
+    record TreeEntry(Path source, String name, String linkName) {}
+
+    /**
+     * Lists everything below root except what excludes matches, without descending into excluded
+     * directories. The root itself is not part of the result. Symlinks inside root are kept as symlinks.
+     */
+    static List<TreeEntry> collectEntries(Path root, ExcludeMatcher excludes, SymlinkPolicy outsideLinks) throws IOException {
+        return collectEntries(root, root, excludes, SymlinkPolicy.PRESERVE, outsideLinks);
+    }
+
+    /** Like collectEntries(root, excludes, outsideLinks), with insideLinks deciding about the symlinks inside root. */
+    static List<TreeEntry> collectEntries(Path root, ExcludeMatcher excludes, SymlinkPolicy insideLinks, SymlinkPolicy outsideLinks) throws IOException {
+        return collectEntries(root, root, excludes, insideLinks, outsideLinks);
+    }
+
+    /**
+     * The entries below start, a directory inside root or a file, named and matched by excludes relative to root.
+     * Symlinks are not followed while walking: insideLinks decides about the ones pointing inside root, absolute ones
+     * made relative when preserved so they still work once extracted, and outsideLinks about the others.
+     */
+    static List<TreeEntry> collectEntries(Path root, Path start, ExcludeMatcher excludes, SymlinkPolicy insideLinks, SymlinkPolicy outsideLinks) throws IOException {
+        Path absoluteRoot = root.toAbsolutePath().normalize();
+        List<TreeEntry> entries = new ArrayList<>();
+        Files.walkFileTree(start, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                if (dir.equals(start)) {
+                    return FileVisitResult.CONTINUE;
+                }
+                String name = relativeName(root, dir);
+                if (excludes.isExcluded(name, true)) {
+                    return FileVisitResult.SKIP_SUBTREE;
+                }
+                entries.add(new TreeEntry(dir, name, null));
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                String name = relativeName(root, file);
+                if (excludes.isExcluded(name, attrs.isDirectory())) {
+                    return FileVisitResult.CONTINUE;
+                }
+                if (!attrs.isSymbolicLink()) {
+                    entries.add(new TreeEntry(file, name, null));
+                    return FileVisitResult.CONTINUE;
+                }
+
+                Path target = Files.readSymbolicLink(file);
+                Path parent = file.toAbsolutePath().normalize().getParent();
+                Path resolved = parent.resolve(target).normalize();
+                boolean inside = resolved.startsWith(absoluteRoot);
+                String option = inside ? "--inside-symlinks" : "--outside-symlinks";
+                switch (inside ? insideLinks : outsideLinks) {
+                    case PRESERVE -> {
+                        Path preserved = inside && target.isAbsolute() ? parent.relativize(resolved) : target;
+                        entries.add(new TreeEntry(file, name, preserved.toString().replace('\\', '/')));
+                    }
+                    case SKIP -> {
+                    }
+                    case ERROR -> throw new IllegalArgumentException("Symlink points %s the input: %s -> %s, see %s".formatted(
+                        inside ? "inside" : "outside", name, target, option));
+                    case FOLLOW -> followSymlink(file, name, target, excludes, entries, option);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return entries;
+    }
+
+    /** Adds what the symlink at link points to under its name, failing on symlink loops below it with a hint about option. */
+    private static void followSymlink(Path link, String name, Path target, ExcludeMatcher excludes, List<TreeEntry> entries, String option) throws IOException {
+        if (!Files.exists(link)) {
+            // Dangling, there is nothing to follow
+            entries.add(new TreeEntry(link, name, target.toString().replace('\\', '/')));
+            return;
+        }
+        entries.add(new TreeEntry(link, name, null));
+        if (!isDirectory(link)) {
+            return;
+        }
+        Files.walkFileTree(link, EnumSet.of(FileVisitOption.FOLLOW_LINKS), Integer.MAX_VALUE, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                if (dir.equals(link)) {
+                    return FileVisitResult.CONTINUE;
+                }
+                String dirName = name + "/" + relativeName(link, dir);
+                if (excludes.isExcluded(dirName, true)) {
+                    return FileVisitResult.SKIP_SUBTREE;
+                }
+                entries.add(new TreeEntry(dir, dirName, null));
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                String fileName = name + "/" + relativeName(link, file);
+                if (!excludes.isExcluded(fileName, false)) {
+                    // Only dangling symlinks are still symlinks when following them
+                    entries.add(new TreeEntry(file, fileName, attrs.isSymbolicLink() ? Files.readSymbolicLink(file).toString().replace('\\', '/') : null));
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException exc) throws IOException {
+                if (exc instanceof FileSystemLoopException) {
+                    throw new IllegalArgumentException("Symlink loop at %s while following %s, see %s".formatted(relativeName(link, file), name, option));
+                }
+                throw exc;
+            }
+        });
+    }
+
+    /** The path of file relative to root as it appears in the archive, separated by slashes. */
+    private static String relativeName(Path root, Path file) {
+        return root.relativize(file).toString().replace('\\', '/');
+    }
+
+    void copyDirectory(Path source, Path target, ExcludeMatcher excludes, boolean hardlink, SymlinkPolicy outsideLinks) throws IOException {
+        // Stop trying hard links after the first failure, the build directory is usually on another file system then
+        boolean[] linkable = {hardlink};
+        
+        for (TreeEntry entry : collectEntries(source, excludes, outsideLinks)) {
+            copyEntry(entry, target.resolve(entry.name()), linkable);
+        }
+    }
+
+    /** Copies a single entry of collectEntries to targetPath, as a hard link while linkable[0] holds. */
+    private static void copyEntry(TreeEntry entry, Path targetPath, boolean[] linkable) throws IOException {
+        Path sourcePath = entry.source();
+        if (entry.linkName() != null) {
+            createDirectories(targetPath.getParent());
+            deleteDirectory(targetPath);
+            try {
+                Files.createSymbolicLink(targetPath, Path.of(entry.linkName()));
+                return;
+            } catch (IOException | UnsupportedOperationException e) {
+                // E.g. Windows without the privilege to create symlinks, copy the target instead if it is a file
+                if (!Files.isRegularFile(sourcePath)) {
+                    throw new IOException("Can't create the symlink %s -> %s: %s".formatted(targetPath, entry.linkName(), e.getMessage()), e);
+                }
+            }
+        } else if (isDirectory(sourcePath)) {
+            if (Files.isSymbolicLink(targetPath)) {
+                Files.delete(targetPath);
+            }
+            createDirectories(targetPath);
+            return;
+        }
+        createDirectories(targetPath.getParent());
+        if (linkable[0]) {
+            try {
+                Files.createLink(targetPath, sourcePath);
+                return;
+            } catch (IOException | UnsupportedOperationException e) {
+                linkable[0] = false;
+            }
+        }
+        if (Files.isSymbolicLink(targetPath)) {
+            Files.delete(targetPath);
+        }
+        // With its modification time, so --entry-cache recognizes the copies of unchanged files
+        copy(sourcePath, targetPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.COPY_ATTRIBUTES);
+    }
+    
+    private void moveDirectory(Path source, Path target) throws IOException {
+        if (exists(target)) {
+            deleteDirectory(target);
+        }
+        Files.move(source, target);
+    }
+    
+    private static void deleteDirectory(Path directory) throws IOException {
+        // Without following symlinks, so a symlink is removed rather than what it points to
+        if (Files.exists(directory, LinkOption.NOFOLLOW_LINKS)) {
+            try (Stream<Path> paths = Files.walk(directory)) {
+                paths.sorted(Comparator.reverseOrder())
+                     .forEach(path -> {
+                         try {
+                             Files.delete(path);
+                         } catch (IOException e) {
+                             // Ignore
+                         }
+                     });
+            }
+        }
+    }
+    
+    /** 
+     * Searches for stubs in the following sequence:
+     * 
+     * 1. Current directory
      * 2. stubs directory
      * 3. build/stubs directory
      * 4. resources (if packaged as JAR)
      */
     private Path findStub(String stubName) {
+        // Cached, so a build-all run looks up and extracts every stub once
+        return stubCache.computeIfAbsent(stubName, name -> Optional.ofNullable(resolveStub(name))).orElse(null);
+    }
+
+    private Path resolveStub(String stubName) {
         if(!stubName.startsWith("stub-")) {
             stubName = "stub-" + stubName;
         }
@@ -592,16 +3122,6 @@ public class jpaxa implements Runnable {
         return "unknown";
     }
     
-    private String generateRandomString(int length) {
-        String chars = "abcdefghijklmnopqrstuvwxyz0123456789";
-        Random random = new Random();
-        StringBuilder sb = new StringBuilder();
-        for (int i = 0; i < length; i++) {
-            sb.append(chars.charAt(random.nextInt(chars.length())));
-        }
-        return sb.toString();
-    }
-    
     private Map<String, String> getKnownVariants() {
         Map<String, String> variants = new LinkedHashMap<>();
         try {
@@ -627,53 +3147,908 @@ public class jpaxa implements Runnable {
             System.err.println("Error reading platforms file: " + e.getMessage());
             return new HashMap<>();
         }
-        return variants;
+        return variants;
+    }
+    
+    private static class FooterInfo {
+        String identifier;
+        List<String> command;
+        String uncompressionMessage;
+        String compression;
+        Long uncompressedSize;
+        IntegrityRef integrity;
+        Boolean validateCache;
+        List<Chunk> chunks;
+        Integer hotChunks;
+        String javaCds;
+    }
+
+    /** Where the integrity manifest is, from the start of the binary. */
+    private static class IntegrityRef {
+        long offset;
+        long length;
+        long entries;
+    }
+
+    @Command(
+        name = "inspect",
+        description = "Inspect a jpaxa-created binary and optionally split it into stub, archive, and footer",
+        mixinStandardHelpOptions = true
+    )
+    int inspect(
+        @Option(names = {"-x", "--explode"}, description = "Split into <binary>.stub, <binary>.tar.gz (or the extension of its codec), and <binary>.json")
+        boolean explode,
+        @Option(names = {"-l", "--list"}, description = "Stream the embedded archive and list every entry, the totals per top-level path and the largest files")
+        boolean list,
+        @Option(names = {"--top"}, paramLabel = "N", defaultValue = "10", description = "Number of largest files to show with --list (default: ${DEFAULT-VALUE})")
+        int top,
+        @Option(names = {"--json"}, description = "Print the inspection as JSON")
+        boolean json,
+        @Parameters(index = "0", paramLabel = "BINARY", description = "The jpaxa binary to inspect")
+        Path binary
+    ) {
+        try {
+            inspectBinary(binary, explode, list, top, json);
+            return ExitCode.OK;
+        } catch (Exception e) {
+            System.err.println("Error inspecting binary: " + e.getMessage());
+            if (Boolean.getBoolean("jpaxa.inspect.stacktrace")) {
+                e.printStackTrace();
+            }
+            return ExitCode.SOFTWARE;
+        }
+    }
+
+    @Command(
+        name = "verify",
+        description = "Verify that all platforms listed in platforms.txt have available stubs",
+        mixinStandardHelpOptions = true
+    )
+    int verify() {
+        try {
+            verifyStubs();
+            return ExitCode.OK;
+        } catch (Exception e) {
+            System.err.println("Error verifying stubs: " + e.getMessage());
+            if (Boolean.getBoolean("jpaxa.verify.stacktrace")) {
+                e.printStackTrace();
+            }
+            return ExitCode.SOFTWARE;
+        }
+    }
+
+    @Command(
+        name = "warm",
+        description = "Extract jpaxa binaries into the extraction cache ahead of their first launch",
+        mixinStandardHelpOptions = true
+    )
+    int warm(
+        @Option(names = {"--threads"}, paramLabel = "N",
+                description = "Number of binaries extracted at the same time, defaults to the number of available processors")
+        Integer threads,
+        @Parameters(index = "0..*", arity = "1..*", paramLabel = "BINARY", description = "The jpaxa binaries to extract")
+        List<Path> binaries
+    ) {
+        int effectiveThreads = Math.max(1, Math.min(binaries.size(), threads != null ? threads : Runtime.getRuntime().availableProcessors()));
+        ExecutorService executor = Executors.newFixedThreadPool(effectiveThreads);
+        try {
+            List<Future<String>> results = new ArrayList<>();
+            for (Path binary : binaries) {
+                results.add(executor.submit(() -> warmBinary(binary)));
+            }
+            // Report in the order the binaries were given, whatever order they finish in
+            boolean allOk = true;
+            for (int i = 0; i < binaries.size(); i++) {
+                try {
+                    System.out.println(results.get(i).get());
+                } catch (ExecutionException e) {
+                    System.err.println("Error warming " + binaries.get(i) + ": " + e.getCause().getMessage());
+                    if (Boolean.getBoolean("jpaxa.warm.stacktrace")) {
+                        e.getCause().printStackTrace();
+                    }
+                    allOk = false;
+                }
+            }
+            return allOk ? ExitCode.OK : ExitCode.SOFTWARE;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return ExitCode.SOFTWARE;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * The directory os.TempDir() returns in the Go stub, and mktemp uses in the shell stub: $TMPDIR or /tmp on
+     * Unix. On Windows both Go and the JDK ask GetTempPath.
+     */
+    static Path stubTemporaryDirectory() {
+        if (System.getProperty("os.name").toLowerCase().contains("win")) {
+            return Path.of(System.getProperty("java.io.tmpdir"));
+        }
+        String tmpdir = System.getenv("TMPDIR");
+        return Path.of(tmpdir != null && !tmpdir.isEmpty() ? tmpdir : "/tmp");
+    }
+
+    /**
+     * Extracts a binary the way its launcher would on first run: same jpaxa/applications/IDENTIFIER/ATTEMPT
+     * directory and the same lock directory protocol, so the next launch finds the cache ready.
+     */
+    private static String warmBinary(Path binary) throws IOException {
+        if (!Files.exists(binary)) {
+            throw new IllegalArgumentException("File not found: " + binary);
+        }
+        try (FileChannel channel = FileChannel.open(binary, StandardOpenOption.READ)) {
+            Trailer trailer = Trailer.readOrScan(channel);
+            FooterInfo footer = new Gson().fromJson(readFooterJson(channel, trailer), FooterInfo.class);
+            if (footer == null || footer.identifier == null || footer.identifier.isEmpty()) {
+                throw new IllegalArgumentException("Not a valid jpaxa binary (no identifier in footer)");
+            }
+            List<IntegrityEntry> integrity = readIntegrity(channel, footer);
+            Path root = stubTemporaryDirectory().resolve("jpaxa");
+            for (int attempt = 0; ; attempt++) {
+                Path lock = cachePath(root.resolve("locks"), footer.identifier, attempt);
+                Path applicationDirectory = cachePath(root.resolve("applications"), footer.identifier, attempt);
+                if (Files.exists(applicationDirectory)) {
+                    if (!Files.isDirectory(applicationDirectory)) {
+                        throw new IllegalStateException("Path to application directory already exists and isn't a directory: " + applicationDirectory);
+                    }
+                    if (Files.exists(lock) && !Files.isDirectory(lock)) {
+                        throw new IllegalStateException("Path to lock already exists and isn't a directory: " + lock);
+                    }
+                    if (Files.isDirectory(lock)) {
+                        // An abandoned extraction is completed from the integrity manifest, as the launchers do
+                        if (integrity != null && isStaleLock(lock)) {
+                            try {
+                                Files.createDirectory(lock.resolve("repair"));
+                            } catch (FileAlreadyExistsException e) {
+                                continue;
+                            }
+                            Set<String> damaged = damagedEntries(applicationDirectory, integrity, false).keySet();
+                            repair(channel, trailer, footer, applicationDirectory, lock, damaged);
+                            deleteDirectory(lock);
+                            return "Repaired %d entries: %s -> %s".formatted(damaged.size(), binary, applicationDirectory);
+                        }
+                        // A previous extraction failed or is still running, start over with a fresh attempt like the launchers do
+                        continue;
+                    }
+                    Set<String> damaged = integrity != null && Boolean.TRUE.equals(footer.validateCache)
+                        ? damagedEntries(applicationDirectory, integrity, false).keySet()
+                        : Set.of();
+                    if (!damaged.isEmpty()) {
+                        try {
+                            createDirectories(lock.getParent());
+                            Files.createDirectory(lock);
+                        } catch (FileAlreadyExistsException e) {
+                            continue;
+                        }
+                        repair(channel, trailer, footer, applicationDirectory, lock, damaged);
+                        Files.delete(lock);
+                        return "Repaired %d entries: %s -> %s".formatted(damaged.size(), binary, applicationDirectory);
+                    }
+                    return "Already extracted: " + binary + " -> " + applicationDirectory;
+                }
+                createDirectories(lock);
+                ScheduledExecutorService heartbeat = lockHeartbeat(lock);
+                try {
+                    if (footer.chunks != null && !footer.chunks.isEmpty()) {
+                        extractChunks(binary, trailer, footer, applicationDirectory);
+                    } else {
+                        InputStream archive = new BoundedInputStream(Channels.newInputStream(channel.position(trailer.archiveOffset)), trailer.archiveLength);
+                        extractArchive(Compression.fromId(footer.compression).decompress(new BufferedInputStream(archive, 64 * 1024)), applicationDirectory);
+                    }
+                } finally {
+                    heartbeat.shutdownNow();
+                }
+                Files.delete(lock);
+                return "Extracted: " + binary + " -> " + applicationDirectory;
+            }
+        }
+    }
+
+    /** How often an extraction touches its lock, and how long without that until the lock is considered abandoned. */
+    static final Duration LOCK_HEARTBEAT = Duration.ofSeconds(10);
+    static final Duration STALE_LOCK = Duration.ofMinutes(1);
+
+    /** A lock whose extraction died: it wasn't touched for longer than STALE_LOCK. */
+    static boolean isStaleLock(Path lock) throws IOException {
+        return Files.getLastModifiedTime(lock).toInstant().plus(STALE_LOCK).isBefore(Instant.now());
+    }
+
+    /** Touches lock every LOCK_HEARTBEAT until the returned executor is shut down, so others don't take it for stale. */
+    private static ScheduledExecutorService lockHeartbeat(Path lock) {
+        ScheduledExecutorService heartbeat = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "jpaxa-lock-heartbeat");
+            thread.setDaemon(true);
+            return thread;
+        });
+        heartbeat.scheduleAtFixedRate(() -> {
+            try {
+                Files.setLastModifiedTime(lock, FileTime.from(Instant.now()));
+            } catch (IOException e) {
+                // The next beat tries again
+            }
+        }, LOCK_HEARTBEAT.toMillis(), LOCK_HEARTBEAT.toMillis(), TimeUnit.MILLISECONDS);
+        return heartbeat;
+    }
+
+    /** The integrity manifest the footer points to, or null for binaries built without one. */
+    static List<IntegrityEntry> readIntegrity(FileChannel channel, FooterInfo footer) throws IOException {
+        if (footer == null || footer.integrity == null || footer.integrity.length <= 0) {
+            return null;
+        }
+        if (footer.integrity.offset < 0 || footer.integrity.offset + footer.integrity.length > channel.size()) {
+            throw new IllegalArgumentException("Integrity manifest is out of the bounds of the binary");
+        }
+        InputStream section = new BoundedInputStream(Channels.newInputStream(channel.position(footer.integrity.offset)), footer.integrity.length);
+        try (Reader reader = new InputStreamReader(new java.util.zip.GZIPInputStream(section), StandardCharsets.UTF_8)) {
+            IntegrityEntry[] entries = new Gson().fromJson(reader, IntegrityEntry[].class);
+            return entries != null ? Arrays.asList(entries) : List.of();
+        } catch (JsonParseException e) {
+            throw new IllegalArgumentException("Invalid integrity manifest: " + e.getMessage());
+        }
+    }
+
+    /**
+     * The entries missing or damaged in an extracted application directory, mapped to what is wrong. Only the type,
+     * the size and symlink targets are checked, from file attributes, unless content also compares file digests.
+     */
+    static Map<String, String> damagedEntries(Path dir, List<IntegrityEntry> entries, boolean content) throws IOException {
+        Map<String, String> damaged = new LinkedHashMap<>();
+        for (IntegrityEntry entry : entries) {
+            Path path = dir.resolve(entry.path()).normalize();
+            if (!path.startsWith(dir)) {
+                throw new IllegalArgumentException("Integrity manifest contains an invalid name: " + entry.path());
+            }
+            BasicFileAttributes attributes;
+            try {
+                attributes = Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+            } catch (NoSuchFileException e) {
+                damaged.put(entry.path(), "missing");
+                continue;
+            }
+            switch (entry.type()) {
+                case "directory" -> {
+                    if (!attributes.isDirectory()) {
+                        damaged.put(entry.path(), "not a directory");
+                    }
+                }
+                case "symlink" -> {
+                    if (!attributes.isSymbolicLink()) {
+                        damaged.put(entry.path(), "not a symlink");
+                    } else if (!Files.readSymbolicLink(path).toString().replace('\\', '/').equals(entry.link())) {
+                        damaged.put(entry.path(), "points to " + Files.readSymbolicLink(path) + " instead of " + entry.link());
+                    }
+                }
+                default -> {
+                    if (!attributes.isRegularFile()) {
+                        damaged.put(entry.path(), "not a file");
+                    } else if (attributes.size() != entry.size()) {
+                        damaged.put(entry.path(), "%d bytes instead of %d".formatted(attributes.size(), entry.size()));
+                    } else if (content && entry.sha256() != null && !entry.sha256().isEmpty()) {
+                        MessageDigest digest = sha256();
+                        try (InputStream in = new DigestInputStream(Files.newInputStream(path), digest)) {
+                            in.transferTo(OutputStream.nullOutputStream());
+                        }
+                        if (!HexFormat.of().formatHex(digest.digest()).equals(entry.sha256())) {
+                            damaged.put(entry.path(), "content differs");
+                        }
+                    }
+                }
+            }
+        }
+        return damaged;
     }
-    
-    private static class FooterInfo {
-        String identifier;
-        List<String> command;
-        String uncompressionMessage;
+
+    /** Extracts the named entries of the binary's archive into dir again, keeping lock fresh meanwhile. */
+    private static void repair(FileChannel channel, Trailer trailer, FooterInfo footer, Path dir, Path lock, Set<String> names) throws IOException {
+        if (names.isEmpty()) {
+            return;
+        }
+        ScheduledExecutorService heartbeat = lockHeartbeat(lock);
+        try {
+            InputStream archive = new BoundedInputStream(Channels.newInputStream(channel.position(trailer.archiveOffset)), trailer.archiveLength);
+            extractArchive(Compression.fromId(footer.compression).decompress(new BufferedInputStream(archive, 64 * 1024)), dir, names);
+        } finally {
+            heartbeat.shutdownNow();
+        }
     }
 
     @Command(
-        name = "inspect",
-        description = "Inspect a jpaxa-created binary and optionally split it into stub, archive, and footer",
+        name = "verify-cache",
+        description = "Check the extracted copies of a jpaxa binary against its integrity manifest, and optionally repair them",
         mixinStandardHelpOptions = true
     )
-    int inspect(
-        @Option(names = {"-x", "--explode"}, description = "Split into <binary>.stub, <binary>.tar.gz, and <binary>.json")
-        boolean explode,
-        @Parameters(index = "0", paramLabel = "BINARY", description = "The jpaxa binary to inspect")
+    int verifyCache(
+        @Option(names = {"--content"}, description = "Also compare the SHA-256 of every file, not only its type and size")
+        boolean content,
+        @Option(names = {"--repair"}, description = "Extract the missing and damaged files again, and release abandoned locks")
+        boolean repair,
+        @Parameters(index = "0", paramLabel = "BINARY", description = "The jpaxa binary whose extraction cache to check")
         Path binary
     ) {
         try {
-            inspectBinary(binary, explode);
-            return ExitCode.OK;
+            return verifyCacheOf(binary, content, repair) ? ExitCode.OK : ExitCode.SOFTWARE;
         } catch (Exception e) {
-            System.err.println("Error inspecting binary: " + e.getMessage());
-            if (Boolean.getBoolean("jpaxa.inspect.stacktrace")) {
+            System.err.println("Error verifying cache: " + e.getMessage());
+            if (Boolean.getBoolean("jpaxa.verify-cache.stacktrace")) {
                 e.printStackTrace();
             }
             return ExitCode.SOFTWARE;
         }
     }
 
+    /** Checks every extraction attempt of the binary, returns whether they are all intact (after repairing them). */
+    private static boolean verifyCacheOf(Path binary, boolean content, boolean repair) throws IOException {
+        if (!Files.exists(binary)) {
+            throw new IllegalArgumentException("File not found: " + binary);
+        }
+        try (FileChannel channel = FileChannel.open(binary, StandardOpenOption.READ)) {
+            Trailer trailer = Trailer.readOrScan(channel);
+            FooterInfo footer = new Gson().fromJson(readFooterJson(channel, trailer), FooterInfo.class);
+            if (footer == null || footer.identifier == null || footer.identifier.isEmpty()) {
+                throw new IllegalArgumentException("Not a valid jpaxa binary (no identifier in footer)");
+            }
+            List<IntegrityEntry> entries = readIntegrity(channel, footer);
+            if (entries == null) {
+                throw new IllegalArgumentException("The binary has no integrity manifest, rebuild it with a newer jpaxa");
+            }
+            Path root = stubTemporaryDirectory().resolve("jpaxa");
+            boolean intact = true;
+            int attempt = 0;
+            for (; Files.isDirectory(cachePath(root.resolve("applications"), footer.identifier, attempt)); attempt++) {
+                Path lock = cachePath(root.resolve("locks"), footer.identifier, attempt);
+                Path applicationDirectory = cachePath(root.resolve("applications"), footer.identifier, attempt);
+                boolean locked = Files.isDirectory(lock);
+                if (locked && !isStaleLock(lock)) {
+                    System.out.println(applicationDirectory + ": extraction in progress");
+                    continue;
+                }
+                Map<String, String> damaged = damagedEntries(applicationDirectory, entries, content);
+                String state = locked ? "abandoned extraction, " : "";
+                if (damaged.isEmpty() && !locked) {
+                    System.out.println(applicationDirectory + ": ok, " + entries.size() + " entries");
+                    continue;
+                }
+                System.out.println(applicationDirectory + ": " + state + damaged.size() + " of " + entries.size() + " entries missing or damaged");
+                damaged.forEach((path, problem) -> System.out.println("  " + path + ": " + problem));
+                if (!repair) {
+                    intact = false;
+                    continue;
+                }
+                // Take the lock like the launchers do, or take over the abandoned one
+                try {
+                    if (locked) {
+                        createDirectories(lock);
+                        Files.createDirectory(lock.resolve("repair"));
+                    } else {
+                        createDirectories(lock.getParent());
+                        Files.createDirectory(lock);
+                    }
+                } catch (FileAlreadyExistsException e) {
+                    System.out.println("  skipped, another process is extracting it");
+                    intact = false;
+                    continue;
+                }
+                repair(channel, trailer, footer, applicationDirectory, lock, damaged.keySet());
+                deleteDirectory(lock);
+                System.out.println("  repaired");
+            }
+            if (attempt == 0) {
+                System.out.println("Not extracted: " + binary);
+            }
+            return intact;
+        }
+    }
+
+    /** Extracts the chunks of a chunked archive in parallel, each read through its own channel. */
+    private static void extractChunks(Path binary, Trailer trailer, FooterInfo footer, Path dir) throws IOException {
+        Compression compression = Compression.fromId(footer.compression);
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(footer.chunks.size(), Runtime.getRuntime().availableProcessors()));
+        try {
+            List<Future<Void>> results = new ArrayList<>();
+            for (Chunk chunk : footer.chunks) {
+                if (chunk.offset() < 0 || chunk.length() < 0 || chunk.offset() + chunk.length() > trailer.archiveLength) {
+                    throw new IllegalArgumentException("Chunk out of the bounds of the archive: " + chunk);
+                }
+                results.add(executor.submit(() -> {
+                    try (FileChannel channel = FileChannel.open(binary, StandardOpenOption.READ)) {
+                        InputStream archive = new BoundedInputStream(Channels.newInputStream(channel.position(trailer.archiveOffset + chunk.offset())), chunk.length());
+                        extractArchive(compression.decompress(new BufferedInputStream(archive, 64 * 1024)), dir);
+                    }
+                    return null;
+                }));
+            }
+            for (Future<Void> result : results) {
+                try {
+                    result.get();
+                } catch (ExecutionException e) {
+                    throw e.getCause() instanceof IOException cause ? cause : new IOException(e.getCause());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while extracting chunks");
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static Path cachePath(Path base, String identifier, int attempt) {
+        Path path = base.resolve(identifier).resolve(String.valueOf(attempt)).normalize();
+        if (!path.startsWith(base)) {
+            throw new IllegalArgumentException("Identifier escapes the cache directory: " + identifier);
+        }
+        return path;
+    }
+
+    /** Writes the entries of an uncompressed tar stream into dir, rejecting names that would escape it. */
+    private static void extractArchive(InputStream tarStream, Path dir) throws IOException {
+        extractArchive(tarStream, dir, null);
+    }
+
+    /** Like extractArchive, but only writes the entries named in only, when not null. */
+    private static void extractArchive(InputStream tarStream, Path dir, Set<String> only) throws IOException {
+        Instant now = Instant.now();
+        try (TarArchiveInputStream tar = new TarArchiveInputStream(tarStream)) {
+            TarArchiveEntry entry;
+            while ((entry = tar.getNextTarEntry()) != null) {
+                if (only != null && !only.contains(entry.getName().replaceAll("/$", ""))) {
+                    continue;
+                }
+                Path target = dir.resolve(entry.getName()).normalize();
+                if (!target.startsWith(dir) || target.equals(dir) && !entry.isDirectory()) {
+                    throw new IOException("Archive contains an invalid name: " + entry.getName());
+                }
+                if (entry.isDirectory()) {
+                    createDirectories(target);
+                } else if (entry.isSymbolicLink()) {
+                    createDirectories(target.getParent());
+                    Files.deleteIfExists(target);
+                    Files.createSymbolicLink(target, Path.of(entry.getLinkName()));
+                } else if (entry.isLink()) {
+                    Path original = dir.resolve(entry.getLinkName()).normalize();
+                    if (!original.startsWith(dir) || !Files.isRegularFile(original, LinkOption.NOFOLLOW_LINKS)) {
+                        throw new IOException("Archive contains an invalid hard link: " + entry.getName() + " -> " + entry.getLinkName());
+                    }
+                    createDirectories(target.getParent());
+                    Files.deleteIfExists(target);
+                    try {
+                        Files.createLink(target, original);
+                    } catch (IOException | UnsupportedOperationException e) {
+                        // The file system doesn't support hard links, fall back to a copy
+                        copy(original, target, StandardCopyOption.COPY_ATTRIBUTES);
+                    }
+                } else if (entry.isFile()) {
+                    createDirectories(target.getParent());
+                    copy(tar, target, StandardCopyOption.REPLACE_EXISTING);
+                    setPermissions(target, entry.getMode());
+                    // Clamp modification times at the current time, as the Go stub does
+                    Instant modified = entry.getLastModifiedDate().toInstant();
+                    Files.setLastModifiedTime(target, FileTime.from(modified.isAfter(now) ? now : modified));
+                } else {
+                    throw new IOException("Archive entry %s has an unsupported type".formatted(entry.getName()));
+                }
+            }
+        }
+    }
+
+    private static void setPermissions(Path file, int mode) throws IOException {
+        try {
+            Set<PosixFilePermission> permissions = EnumSet.noneOf(PosixFilePermission.class);
+            PosixFilePermission[] bits = {
+                OTHERS_EXECUTE, OTHERS_WRITE, OTHERS_READ,
+                GROUP_EXECUTE, GROUP_WRITE, GROUP_READ,
+                OWNER_EXECUTE, OWNER_WRITE, OWNER_READ
+            };
+            for (int i = 0; i < bits.length; i++) {
+                if ((mode & (1 << i)) != 0) {
+                    permissions.add(bits[i]);
+                }
+            }
+            Files.setPosixFilePermissions(file, permissions);
+        } catch (UnsupportedOperationException e) {
+            // Windows doesn't support PosixFilePermission
+        }
+    }
+
+    /**
+     * Manages the extraction cache the launchers fill under $TMPDIR/jpaxa. Every launch touches its
+     * application directory, so its modification time is the last use. Entries are removed by first
+     * renaming them into jpaxa/trash, which is atomic: a launcher starting at the same time either
+     * finds the complete directory or none (and extracts again), never a half deleted one. Entries
+     * with a lock and entries used recently are left alone, and so are entries with a lease: launchers
+     * hold one in jpaxa/leases for as long as their command runs.
+     */
     @Command(
-        name = "verify",
-        description = "Verify that all platforms listed in platforms.txt have available stubs",
+        name = "cache",
+        description = "List and clean up the extraction cache of jpaxa binaries",
         mixinStandardHelpOptions = true
     )
-    int verify() {
-        try {
-            verifyStubs();
-            return ExitCode.OK;
-        } catch (Exception e) {
-            System.err.println("Error verifying stubs: " + e.getMessage());
-            if (Boolean.getBoolean("jpaxa.verify.stacktrace")) {
-                e.printStackTrace();
+    static class Cache implements Runnable {
+
+        @Option(names = {"--cache-dir"}, paramLabel = "DIR", scope = CommandLine.ScopeType.INHERIT,
+                description = "The jpaxa cache directory, defaults to jpaxa in the temporary directory the launchers use")
+        Path cacheDir;
+
+        record Entry(String identifier, String attempt, Path directory, Path lock, Path lease, long size, FileTime lastUsed, FileTime lockTime, boolean running) {
+            String name() {
+                return identifier + "/" + attempt;
             }
-            return ExitCode.SOFTWARE;
+        }
+
+        @Override
+        public void run() {
+            new CommandLine(this).usage(System.err);
+        }
+
+        @Command(name = "list", description = "List cached applications with their size and last use", mixinStandardHelpOptions = true)
+        int list(
+            @Option(names = {"--stale-after"}, paramLabel = "DURATION", defaultValue = "1h",
+                    description = "Age after which a lock is considered left behind by a crashed extraction (default: ${DEFAULT-VALUE})")
+            String staleAfter
+        ) {
+            try {
+                Duration staleDuration = parseDuration(staleAfter);
+                List<Entry> entries = scan();
+                System.out.printf(Locale.ROOT, "%-20s %12s  %-10s  %s%n", "LAST USED", "SIZE", "STATE", "APPLICATION");
+                long total = 0;
+                for (Entry entry : entries) {
+                    System.out.printf(Locale.ROOT, "%-20s %12s  %-10s  %s%n",
+                        entry.lastUsed().toInstant().truncatedTo(ChronoUnit.SECONDS).toString().replace('T', ' ').replace("Z", ""),
+                        formatSize(entry.size()), state(entry, staleDuration), entry.name());
+                    total += entry.size();
+                }
+                System.out.println();
+                System.out.println(entries.size() + " application(s), " + formatSize(total) + " in " + root());
+                return ExitCode.OK;
+            } catch (Exception e) {
+                System.err.println("Error listing cache: " + e.getMessage());
+                return ExitCode.SOFTWARE;
+            }
+        }
+
+        @Command(name = "prune", description = "Remove locks and partial extractions left behind by crashed or interrupted launches", mixinStandardHelpOptions = true)
+        int prune(
+            @Option(names = {"--stale-after"}, paramLabel = "DURATION", defaultValue = "1h",
+                    description = "Age after which a lock is considered left behind by a crashed extraction (default: ${DEFAULT-VALUE})")
+            String staleAfter
+        ) {
+            try {
+                pruneStale(parseDuration(staleAfter));
+                return ExitCode.OK;
+            } catch (Exception e) {
+                System.err.println("Error pruning cache: " + e.getMessage());
+                return ExitCode.SOFTWARE;
+            }
+        }
+
+        @Command(name = "gc", description = "Prune, then evict the least recently used applications until the cache fits the budget", mixinStandardHelpOptions = true)
+        int gc(
+            @Option(names = {"--max-size"}, paramLabel = "SIZE",
+                    description = "Size budget for the cache, e.g. 500M or 2G")
+            String maxSize,
+            @Option(names = {"--max-age"}, paramLabel = "DURATION",
+                    description = "Also evict applications not used for longer than this, e.g. 30d")
+            String maxAge,
+            @Option(names = {"--keep-recent"}, paramLabel = "DURATION", defaultValue = "1h",
+                    description = "Never evict applications used more recently than this, they may still be running (default: ${DEFAULT-VALUE})")
+            String keepRecent,
+            @Option(names = {"--stale-after"}, paramLabel = "DURATION", defaultValue = "1h",
+                    description = "Age after which a lock is considered left behind by a crashed extraction (default: ${DEFAULT-VALUE})")
+            String staleAfter,
+            @Option(names = {"-n", "--dry-run"}, description = "Only print what would be evicted")
+            boolean dryRun
+        ) {
+            try {
+                if (maxSize == null && maxAge == null) {
+                    throw new IllegalArgumentException("Give a budget with --max-size and/or --max-age");
+                }
+                long budget = maxSize != null ? parseSize(maxSize) : Long.MAX_VALUE;
+                Instant now = Instant.now();
+                Instant unusedSince = maxAge != null ? now.minus(parseDuration(maxAge)) : Instant.MIN;
+                Instant recent = now.minus(parseDuration(keepRecent));
+                if (!dryRun) {
+                    pruneStale(parseDuration(staleAfter));
+                }
+
+                List<Entry> entries = scan();
+                long total = entries.stream().mapToLong(Entry::size).sum();
+                entries.sort(Comparator.comparing(Entry::lastUsed));
+                long freed = 0;
+                for (Entry entry : entries) {
+                    Instant lastUsed = entry.lastUsed().toInstant();
+                    boolean overBudget = total - freed > budget;
+                    boolean expired = lastUsed.isBefore(unusedSince);
+                    if (!overBudget && !expired) {
+                        continue;
+                    }
+                    if (entry.lockTime() != null || entry.running() || lastUsed.isAfter(recent)) {
+                        continue;
+                    }
+                    if (dryRun) {
+                        System.out.println("Would evict " + entry.name() + " (" + formatSize(entry.size()) + ")");
+                        freed += entry.size();
+                    } else if (remove(entry.directory(), entry.lock(), entry.lease())) {
+                        System.out.println("Evicted " + entry.name() + " (" + formatSize(entry.size()) + ")");
+                        freed += entry.size();
+                    } else {
+                        System.out.println("Skipped " + entry.name() + ", it is in use");
+                    }
+                }
+                System.out.println((dryRun ? "Would free " : "Freed ") + formatSize(freed) + ", " + formatSize(total - freed) + " left in " + root());
+                if (total - freed > budget) {
+                    System.out.println("The cache is still over budget, the remaining applications are locked, running or were used recently");
+                }
+                return ExitCode.OK;
+            } catch (Exception e) {
+                System.err.println("Error collecting cache: " + e.getMessage());
+                return ExitCode.SOFTWARE;
+            }
+        }
+
+        private Path root() {
+            return cacheDir != null ? cacheDir : stubTemporaryDirectory().resolve("jpaxa");
+        }
+
+        private static String state(Entry entry, Duration staleAfter) {
+            if (entry.lockTime() == null) {
+                return entry.running() ? "running" : "ok";
+            }
+            return entry.lockTime().toInstant().isBefore(Instant.now().minus(staleAfter)) ? "stale" : "extracting";
+        }
+
+        /** Finds the extractions below applications/ with their lock and lease, see attempts. */
+        private List<Entry> scan() throws IOException {
+            Path applications = root().resolve("applications");
+            Path locks = root().resolve("locks");
+            Path leases = root().resolve("leases");
+            List<Entry> entries = new ArrayList<>();
+            for (Path dir : attempts(applications)) {
+                Path lock = locks.resolve(applications.relativize(dir));
+                Path lease = leases.resolve(applications.relativize(dir));
+                FileTime lockTime = Files.isDirectory(lock) ? Files.getLastModifiedTime(lock) : null;
+                entries.add(new Entry(relativeName(applications, dir.getParent()), dir.getFileName().toString(), dir, lock, lease,
+                    directorySize(dir), Files.getLastModifiedTime(dir), lockTime, leased(lease)));
+            }
+            return entries;
+        }
+
+        /**
+         * The IDENTIFIER/ATTEMPT directories the launchers create below root, applications/, locks/ or leases/. The
+         * attempt is a number and the identifier may contain slashes and all-digit parts, like app/2 or a hash made of
+         * digits only, so the attempt is the deepest numeric directory on the way down, the one without a numeric child.
+         * An application with numeric directories at its top is told apart by its lock or lease, when it has one.
+         */
+        private List<Path> attempts(Path root) throws IOException {
+            List<Path> attempts = new ArrayList<>();
+            if (!Files.isDirectory(root)) {
+                return attempts;
+            }
+            Path applications = root().resolve("applications");
+            Path locks = root().resolve("locks");
+            Path leases = root().resolve("leases");
+            Files.walkFileTree(root, new SimpleFileVisitor<>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                    if (dir.equals(root) || dir.getParent().equals(root) || !isNumeric(dir)) {
+                        return FileVisitResult.CONTINUE;
+                    }
+                    Path relative = root.relativize(dir);
+                    if (hasNumericChild(dir) && !(root.equals(applications) && (isAttempt(locks.resolve(relative)) || isAttempt(leases.resolve(relative))))) {
+                        return FileVisitResult.CONTINUE;
+                    }
+                    attempts.add(dir);
+                    return FileVisitResult.SKIP_SUBTREE;
+                }
+            });
+            return attempts;
+        }
+
+        private static boolean isNumeric(Path dir) {
+            return dir.getFileName().toString().matches("\\d+");
+        }
+
+        /** A lock or lease directory of an attempt, whose path tells the attempt of the application directory apart. */
+        private static boolean isAttempt(Path lock) throws IOException {
+            return Files.isDirectory(lock) && !hasNumericChild(lock);
+        }
+
+        /** Whether a launcher runs its command from the attempt of this lease directory, holding a lease it touched within STALE_LOCK. */
+        private static boolean leased(Path lease) throws IOException {
+            if (!Files.isDirectory(lease)) {
+                return false;
+            }
+            List<Path> held;
+            try (Stream<Path> leases = Files.list(lease)) {
+                held = leases.collect(Collectors.toList());
+            } catch (NoSuchFileException e) {
+                return false;
+            }
+            for (Path path : held) {
+                try {
+                    if (!isStaleLock(path)) {
+                        return true;
+                    }
+                } catch (NoSuchFileException e) {
+                    // Released meanwhile
+                }
+            }
+            return false;
+        }
+
+        private static boolean hasNumericChild(Path dir) throws IOException {
+            try (Stream<Path> children = Files.list(dir)) {
+                return children.anyMatch(child -> Files.isDirectory(child, LinkOption.NOFOLLOW_LINKS) && isNumeric(child));
+            }
+        }
+
+        /** Removes locks older than staleAfter with the partial extraction they guarded, leases of launchers that died and leftovers in the trash. */
+        private void pruneStale(Duration staleAfter) throws IOException {
+            Path applications = root().resolve("applications");
+            Path locks = root().resolve("locks");
+            Path leases = root().resolve("leases");
+            Instant staleBefore = Instant.now().minus(staleAfter);
+            int pruned = 0;
+            if (Files.isDirectory(locks)) {
+                List<Path> staleLocks = new ArrayList<>();
+                for (Path lock : attempts(locks)) {
+                    if (Files.getLastModifiedTime(lock).toInstant().isBefore(staleBefore)) {
+                        staleLocks.add(lock);
+                    }
+                }
+                for (Path lock : staleLocks) {
+                    // The launchers never reuse an attempt that has a lock, so its directory is dead weight
+                    Path directory = applications.resolve(locks.relativize(lock));
+                    if (Files.exists(directory) && !remove(directory, lock.resolve("repair"), leases.resolve(locks.relativize(lock)))) {
+                        System.out.println("Skipped " + relativeName(applications, directory) + ", it is in use");
+                        continue;
+                    }
+                    // A lock is a directory, holding the hot and repair markers of the launchers
+                    deleteDirectory(lock);
+                    System.out.println("Pruned " + relativeName(locks, lock));
+                    pruned++;
+                }
+            }
+            for (Path lease : attempts(leases)) {
+                try (Stream<Path> held = Files.list(lease)) {
+                    for (Path path : held.collect(Collectors.toList())) {
+                        if (isStaleLock(path)) {
+                            Files.deleteIfExists(path);
+                        }
+                    }
+                }
+            }
+            Path trash = root().resolve("trash");
+            if (Files.isDirectory(trash)) {
+                try (Stream<Path> leftovers = Files.list(trash)) {
+                    for (Path leftover : leftovers.collect(Collectors.toList())) {
+                        // Left behind by a removal that died, not one deleting it right now
+                        if (trashedAt(leftover).isBefore(staleBefore)) {
+                            deleteDirectory(leftover);
+                        }
+                    }
+                }
+            }
+            removeEmptyDirectories(applications);
+            removeEmptyDirectories(locks);
+            removeEmptyDirectories(leases);
+            System.out.println("Pruned " + pruned + " stale lock(s)");
+        }
+
+        /**
+         * Atomically moves directory into the trash, then deletes it. Returns false if it can't be moved, e.g. because
+         * it's in use on Windows, if a launcher holds a lease on it, or if claim already exists. claim is a directory
+         * launchers stay away from, created for the time of the removal: the lock of the attempt, or the repair marker
+         * of a stale one. Launchers take the lease before they look at those, so either the lease is seen here or the
+         * launcher sees the claim and moves on to another attempt.
+         */
+        private boolean remove(Path directory, Path claim, Path lease) throws IOException {
+            createDirectories(claim.getParent());
+            try {
+                Files.createDirectory(claim);
+            } catch (FileAlreadyExistsException e) {
+                return false;
+            }
+            try {
+                if (leased(lease)) {
+                    return false;
+                }
+                // Named after the time of the move, pruneStale leaves alone what a removal is still deleting
+                Path trash = createDirectories(root().resolve("trash"));
+                Path target = trash.resolve(System.currentTimeMillis() + "-" + UUID.randomUUID());
+                try {
+                    Files.move(directory, target, StandardCopyOption.ATOMIC_MOVE);
+                } catch (AccessDeniedException | AtomicMoveNotSupportedException e) {
+                    return false;
+                }
+                deleteDirectory(target);
+                return true;
+            } finally {
+                Files.deleteIfExists(claim);
+            }
+        }
+
+        /** When leftover was moved into the trash, from its name, or its modification time for older names. */
+        private static Instant trashedAt(Path leftover) throws IOException {
+            String name = leftover.getFileName().toString();
+            if (name.matches("\\d+-.*")) {
+                return Instant.ofEpochMilli(Long.parseLong(name.substring(0, name.indexOf('-'))));
+            }
+            return Files.getLastModifiedTime(leftover, LinkOption.NOFOLLOW_LINKS).toInstant();
+        }
+
+        private static void removeEmptyDirectories(Path root) throws IOException {
+            if (!Files.isDirectory(root)) {
+                return;
+            }
+            Files.walkFileTree(root, new SimpleFileVisitor<>() {
+                @Override
+                public FileVisitResult postVisitDirectory(Path dir, IOException exc) {
+                    if (!dir.equals(root)) {
+                        try {
+                            Files.delete(dir);
+                        } catch (IOException e) {
+                            // Not empty
+                        }
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        }
+
+        private static long directorySize(Path directory) throws IOException {
+            long[] size = {0};
+            Files.walkFileTree(directory, new SimpleFileVisitor<>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                    size[0] += attrs.size();
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException exc) {
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+            return size[0];
+        }
+
+        /** Parses durations like 500ms, 90s, 30m, 12h or 7d. */
+        static Duration parseDuration(String value) {
+            java.util.regex.Matcher matcher = Pattern.compile("(\\d+)\\s*(ms|[smhd])").matcher(value.trim().toLowerCase(Locale.ROOT));
+            if (!matcher.matches()) {
+                throw new IllegalArgumentException("Invalid duration, expected e.g. 30m, 12h or 7d: " + value);
+            }
+            long amount = Long.parseLong(matcher.group(1));
+            return switch (matcher.group(2)) {
+                case "ms" -> Duration.ofMillis(amount);
+                case "s" -> Duration.ofSeconds(amount);
+                case "m" -> Duration.ofMinutes(amount);
+                case "h" -> Duration.ofHours(amount);
+                default -> Duration.ofDays(amount);
+            };
+        }
+
+        /** Parses sizes like 1048576, 512K, 500M or 2G (powers of 1024). */
+        static long parseSize(String value) {
+            java.util.regex.Matcher matcher = Pattern.compile("(\\d+)\\s*([kmgt]?)b?").matcher(value.trim().toLowerCase(Locale.ROOT));
+            if (!matcher.matches()) {
+                throw new IllegalArgumentException("Invalid size, expected e.g. 500M or 2G: " + value);
+            }
+            int shift = "kmgt".indexOf(matcher.group(2).isEmpty() ? "-" : matcher.group(2)) + 1;
+            return Long.parseLong(matcher.group(1)) << (10 * shift);
+        }
+
+        static String formatSize(long bytes) {
+            String units = "KMGT";
+            double size = bytes;
+            int unit = -1;
+            while (size >= 1024 && unit < units.length() - 1) {
+                size /= 1024;
+                unit++;
+            }
+            return unit < 0 ? bytes + " B" : String.format(Locale.ROOT, "%.1f %sB", size, units.charAt(unit));
         }
     }
 
@@ -713,79 +4088,387 @@ public class jpaxa implements Runnable {
         }
     }
 
-    private static void inspectBinary(Path binary, boolean explode) throws IOException {
-        if (!Files.exists(binary)) {
-            throw new IllegalArgumentException("File not found: " + binary);
+    /**
+     * Fixed-size record at the very end of a binary, so readers seek straight to every part instead of
+     * scanning for the separators. Big-endian: stub length, archive offset, archive length, footer offset
+     * and footer length as 64-bit integers, then a 32-bit version and the magic. The separator before the
+     * archive and the newline before the footer are still written, binaries without a trailer are found
+     * through them as before. The stub ends with that separator and its length counts it, in both formats,
+     * so the stub part of a binary is the stub file as shipped.
+     */
+    static class Trailer {
+        static final byte[] MAGIC = "JPAXATRL".getBytes(StandardCharsets.US_ASCII);
+        static final int VERSION = 1;
+        static final int SIZE = 5 * Long.BYTES + Integer.BYTES + MAGIC.length;
+
+        long stubLength;
+        long archiveOffset;
+        long archiveLength;
+        long footerOffset;
+        long footerLength;
+
+        /** The trailer of a binary laid out as stub, archive, footer separator, footer. */
+        static Trailer of(long stubLength, long archiveLength, long footerLength) {
+            return of(stubLength, archiveLength, 0, footerLength);
+        }
+
+        /**
+         * The trailer of a binary laid out as stub, archive, integrity manifest, footer separator, footer. Launchers
+         * that predate the manifest skip it, as they only read the archive and the footer at their offsets.
+         */
+        static Trailer of(long stubLength, long archiveLength, long integrityLength, long footerLength) {
+            Trailer trailer = new Trailer();
+            trailer.stubLength = stubLength;
+            trailer.archiveOffset = stubLength;
+            trailer.archiveLength = archiveLength;
+            trailer.footerOffset = trailer.archiveOffset + archiveLength + integrityLength + FOOTER_SEPARATOR.length;
+            trailer.footerLength = footerLength;
+            return trailer;
+        }
+
+        byte[] toBytes() {
+            return ByteBuffer.allocate(SIZE)
+                .putLong(stubLength)
+                .putLong(archiveOffset)
+                .putLong(archiveLength)
+                .putLong(footerOffset)
+                .putLong(footerLength)
+                .putInt(VERSION)
+                .put(MAGIC)
+                .array();
+        }
+
+        /** The trailer at the end of the channel, or null for binaries written before it existed. */
+        static Trailer read(FileChannel channel) throws IOException {
+            long size = channel.size();
+            if (size < SIZE) {
+                return null;
+            }
+            ByteBuffer buffer = ByteBuffer.allocate(SIZE);
+            readFully(channel, buffer, size - SIZE);
+            buffer.flip();
+            byte[] magic = new byte[MAGIC.length];
+            buffer.get(SIZE - MAGIC.length, magic);
+            if (!Arrays.equals(magic, MAGIC)) {
+                return null;
+            }
+            Trailer trailer = new Trailer();
+            trailer.stubLength = buffer.getLong();
+            trailer.archiveOffset = buffer.getLong();
+            trailer.archiveLength = buffer.getLong();
+            trailer.footerOffset = buffer.getLong();
+            trailer.footerLength = buffer.getLong();
+            int version = buffer.getInt();
+            if (version > VERSION) {
+                throw new IllegalArgumentException("Unsupported trailer version %d, the binary was built by a newer jpaxa".formatted(version));
+            }
+            if (trailer.archiveOffset < 0 || trailer.archiveLength < 0 || trailer.footerLength < 0
+                    || trailer.archiveOffset + trailer.archiveLength > trailer.footerOffset
+                    || trailer.footerOffset + trailer.footerLength > size - SIZE) {
+                throw new IllegalArgumentException("Not a valid jpaxa binary (inconsistent trailer offsets)");
+            }
+            return trailer;
+        }
+
+        /** Locates the parts of a binary without a trailer by searching backwards for the footer and archive separators. */
+        static Trailer scan(FileChannel channel) throws IOException {
+            long size = channel.size();
+            long footerIndex = lastIndexOf(channel, FOOTER_SEPARATOR, size);
+            if (footerIndex == -1 || footerIndex + FOOTER_SEPARATOR.length >= size) {
+                throw new IllegalArgumentException("Not a valid jpaxa binary (footer separator not found)");
+            }
+            long archiveIndex = lastIndexOf(channel, ARCHIVE_SEPARATOR, footerIndex);
+            if (archiveIndex == -1) {
+                throw new IllegalArgumentException("Not a valid jpaxa binary (archive separator not found)");
+            }
+            Trailer trailer = new Trailer();
+            trailer.archiveOffset = archiveIndex + ARCHIVE_SEPARATOR.length;
+            trailer.stubLength = trailer.archiveOffset;
+            trailer.archiveLength = footerIndex - trailer.archiveOffset;
+            trailer.footerOffset = footerIndex + FOOTER_SEPARATOR.length;
+            trailer.footerLength = size - trailer.footerOffset;
+            if (trailer.archiveLength < 0) {
+                throw new IllegalArgumentException("Not a valid jpaxa binary (inconsistent archive/footer positions)");
+            }
+            return trailer;
         }
 
-        byte[] bytes = Files.readAllBytes(binary);
-        if (bytes.length == 0) {
-            throw new IllegalArgumentException("File is empty: " + binary);
+        static Trailer readOrScan(FileChannel channel) throws IOException {
+            Trailer trailer = read(channel);
+            return trailer != null ? trailer : scan(channel);
         }
+    }
 
-        int footerIndex = lastIndexOf(bytes, FOOTER_SEPARATOR);
-        if (footerIndex == -1 || footerIndex + FOOTER_SEPARATOR.length >= bytes.length) {
-            throw new IllegalArgumentException("Not a valid jpaxa binary (footer separator not found)");
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, position);
+            if (n < 0) {
+                throw new EOFException("Unexpected end of file at " + position);
+            }
+            position += n;
         }
-        int footerStart = footerIndex + FOOTER_SEPARATOR.length;
-        String footerJson = new String(bytes, footerStart, bytes.length - footerStart, StandardCharsets.UTF_8);
+    }
 
-        FooterInfo footer = new Gson().fromJson(footerJson, FooterInfo.class);
+    private static void transferRange(FileChannel source, long position, long length, Path target) throws IOException {
+        try (FileChannel out = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            long end = position + length;
+            while (position < end) {
+                position += source.transferTo(position, end - position, out);
+            }
+        }
+    }
 
-        int archiveIndex = lastIndexOf(bytes, ARCHIVE_SEPARATOR);
-        if (archiveIndex == -1 || archiveIndex >= footerIndex) {
-            throw new IllegalArgumentException("Not a valid jpaxa binary (archive separator not found)");
+    static String readFooterJson(FileChannel channel, Trailer trailer) throws IOException {
+        if (trailer.footerLength > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Not a valid jpaxa binary (footer too large)");
         }
+        ByteBuffer buffer = ByteBuffer.allocate((int) trailer.footerLength);
+        readFully(channel, buffer, trailer.footerOffset);
+        return new String(buffer.array(), StandardCharsets.UTF_8);
+    }
 
-        int stubEnd = archiveIndex;
-        int archiveStart = archiveIndex + ARCHIVE_SEPARATOR.length;
-        int archiveLength = footerIndex - archiveStart;
-        if (archiveLength < 0) {
-            throw new IllegalArgumentException("Not a valid jpaxa binary (inconsistent archive/footer positions)");
+    private static void inspectBinary(Path binary, boolean explode, boolean list, int top, boolean json) throws IOException {
+        if (!Files.exists(binary)) {
+            throw new IllegalArgumentException("File not found: " + binary);
         }
 
-        long totalSize = bytes.length;
-        System.out.println("File: " + binary.toAbsolutePath());
-        System.out.println("Total size:   " + totalSize + " bytes");
-        System.out.println("Stub size:    " + stubEnd + " bytes");
-        System.out.println("Archive size: " + archiveLength + " bytes");
-        System.out.println("Footer size:  " + (bytes.length - footerStart) + " bytes");
+        try (FileChannel channel = FileChannel.open(binary, StandardOpenOption.READ)) {
+            long totalSize = channel.size();
+            if (totalSize == 0) {
+                throw new IllegalArgumentException("File is empty: " + binary);
+            }
+
+            Trailer trailer = Trailer.read(channel);
+            boolean hasTrailer = trailer != null;
+            if (!hasTrailer) {
+                trailer = Trailer.scan(channel);
+            }
+            String footerJson = readFooterJson(channel, trailer);
+            FooterInfo footer = new Gson().fromJson(footerJson, FooterInfo.class);
+            Compression compression = Compression.fromId(footer != null ? footer.compression : null);
+            List<Path> exploded = explode ? explode(binary, channel, trailer, compression, footerJson) : List.of();
+
+            if (json) {
+                Map<String, Object> report = new LinkedHashMap<>();
+                report.put("file", binary.toAbsolutePath().toString());
+                report.put("totalSize", totalSize);
+                report.put("stubSize", trailer.stubLength);
+                report.put("archiveSize", trailer.archiveLength);
+                report.put("footerSize", trailer.footerLength);
+                report.put("compression", compression.id());
+                report.put("layout", footer != null && footer.chunks != null && !footer.chunks.isEmpty() ? "chunked" : "stream");
+                report.put("footer", footer);
+                if (list) {
+                    report.put("archive", listArchive(channel, trailer, compression, top));
+                }
+                if (explode) {
+                    report.put("exploded", exploded.stream().map(path -> path.toAbsolutePath().toString()).toList());
+                }
+                System.out.println(new GsonBuilder().setPrettyPrinting().create().toJson(report));
+                return;
+            }
+
+            System.out.println("File: " + binary.toAbsolutePath());
+            System.out.println("Total size:   " + totalSize + " bytes");
+            System.out.println("Stub size:    " + trailer.stubLength + " bytes");
+            System.out.println("Archive size: " + trailer.archiveLength + " bytes");
+            System.out.println("Footer size:  " + trailer.footerLength + " bytes");
+            System.out.println("Trailer:      " + (hasTrailer ? "version " + Trailer.VERSION : "none (separator format)"));
 
-        if (footer != null) {
             System.out.println();
-            System.out.println("Identifier: " + footer.identifier);
-            System.out.println("Command:   " + (footer.command != null ? footer.command : Collections.emptyList()));
-            if (footer.uncompressionMessage != null) {
-                System.out.println("Message:   " + footer.uncompressionMessage);
+            System.out.println("Compression: " + compression.id());
+            if (footer != null && footer.chunks != null && !footer.chunks.isEmpty()) {
+                long largest = footer.chunks.stream().mapToLong(Chunk::size).max().orElse(0);
+                System.out.println("Layout:      chunked, " + footer.chunks.size() + " chunks, largest " + Cache.formatSize(largest) + " uncompressed"
+                    + (footer.hotChunks != null ? ", the first " + footer.hotChunks + " from the startup profile" : ""));
+            } else {
+                System.out.println("Layout:      stream");
+            }
+            if (footer != null && footer.uncompressedSize != null && trailer.archiveLength > 0) {
+                System.out.println("Uncompressed size: " + footer.uncompressedSize + " bytes");
+                System.out.printf(Locale.ROOT, "Compression ratio: %.2f%n", (double) footer.uncompressedSize / trailer.archiveLength);
+            }
+
+            if (footer != null) {
+                System.out.println();
+                System.out.println("Identifier: " + footer.identifier);
+                System.out.println("Command:   " + (footer.command != null ? footer.command : Collections.emptyList()));
+                if (footer.uncompressionMessage != null) {
+                    System.out.println("Message:   " + footer.uncompressionMessage);
+                }
+                if (footer.integrity != null) {
+                    System.out.println("Integrity: " + footer.integrity.entries + " entries, " + footer.integrity.length + " bytes"
+                        + (Boolean.TRUE.equals(footer.validateCache) ? ", checked on every start" : ""));
+                }
+                if (footer.javaCds != null) {
+                    System.out.println("Java CDS:  " + footer.javaCds + ", created by the first run");
+                }
+            }
+
+            if (list) {
+                printListing(listArchive(channel, trailer, compression, top));
+            }
+
+            if (explode) {
+                System.out.println();
+                System.out.println("Exploded into:");
+                for (Path path : exploded) {
+                    System.out.println("  " + path.toAbsolutePath());
+                }
             }
         }
+    }
 
-        if (explode) {
-            Path dir = binary.getParent() != null ? binary.getParent() : Paths.get(".");
-            String baseName = binary.getFileName().toString();
+    /** Splits binary into its stub, its archive and its footer next to it, and returns the three files. */
+    private static List<Path> explode(Path binary, FileChannel channel, Trailer trailer, Compression compression, String footerJson) throws IOException {
+        Path dir = binary.getParent() != null ? binary.getParent() : Paths.get(".");
+        String baseName = binary.getFileName().toString();
 
-            Path stubOut = dir.resolve(baseName + ".stub");
-            Path archiveOut = dir.resolve(baseName + ".tar.gz");
-            Path footerOut = dir.resolve(baseName + ".json");
+        Path stubOut = dir.resolve(baseName + ".stub");
+        Path archiveOut = dir.resolve(baseName + "." + compression.extension);
+        Path footerOut = dir.resolve(baseName + ".json");
 
-            Files.write(stubOut, Arrays.copyOfRange(bytes, 0, stubEnd));
-            Files.write(archiveOut, Arrays.copyOfRange(bytes, archiveStart, archiveStart + archiveLength));
-            Files.write(footerOut, footerJson.getBytes(StandardCharsets.UTF_8));
+        transferRange(channel, 0, trailer.stubLength, stubOut);
+        transferRange(channel, trailer.archiveOffset, trailer.archiveLength, archiveOut);
+        Files.write(footerOut, footerJson.getBytes(StandardCharsets.UTF_8));
+        return List.of(stubOut, archiveOut, footerOut);
+    }
+
+    /** What {@code inspect --list} found in the embedded archive. */
+    static class ArchiveListing {
+        record Entry(String path, String mode, long size) {}
+        record Total(String path, long size, long files) {}
+
+        List<Entry> entries = new ArrayList<>();
+        List<Total> totals = new ArrayList<>();
+        List<Entry> largest = new ArrayList<>();
+        long files;
+        long directories;
+        long contentSize;
+        long uncompressedSize;
+        long archiveSize;
+        double compressionRatio;
+    }
+
+    /** Streams the embedded archive through its decoder, nothing is extracted or buffered beyond one entry header. */
+    private static ArchiveListing listArchive(FileChannel channel, Trailer trailer, Compression compression, int top) throws IOException {
+        ArchiveListing listing = new ArchiveListing();
+        Map<String, long[]> totals = new TreeMap<>();
+        PriorityQueue<ArchiveListing.Entry> largest = new PriorityQueue<>(Comparator.comparingLong(ArchiveListing.Entry::size));
+        InputStream archive = new BoundedInputStream(Channels.newInputStream(channel.position(trailer.archiveOffset)), trailer.archiveLength);
+        // Entry content is skipped rather than read, count skipped bytes too
+        try (CountingInputStream counter = new CountingInputStream(compression.decompress(new BufferedInputStream(archive, 64 * 1024))) {
+                 @Override
+                 public long skip(long n) throws IOException {
+                     long skipped = super.skip(n);
+                     count(skipped);
+                     return skipped;
+                 }
+             };
+             TarArchiveInputStream tar = new TarArchiveInputStream(counter)) {
+            TarArchiveEntry entry;
+            while ((entry = tar.getNextTarEntry()) != null) {
+                ArchiveListing.Entry listed = new ArchiveListing.Entry(entry.getName(), modeString(entry), entry.getSize());
+                listing.entries.add(listed);
+                if (entry.isDirectory()) {
+                    listing.directories++;
+                    continue;
+                }
+                listing.files++;
+                listing.contentSize += entry.getSize();
+                String name = entry.getName();
+                int slash = name.indexOf('/');
+                long[] total = totals.computeIfAbsent(slash == -1 ? name : name.substring(0, slash + 1), key -> new long[2]);
+                total[0] += entry.getSize();
+                total[1]++;
+                if (top > 0 && entry.isFile()) {
+                    largest.add(listed);
+                    if (largest.size() > top) {
+                        largest.poll();
+                    }
+                }
+            }
+            // Count the end-of-archive records and padding as well, so the ratio covers the whole stream
+            IOUtils.skip(counter, Long.MAX_VALUE);
+            listing.uncompressedSize = counter.getBytesRead();
+        }
+        totals.forEach((path, total) -> listing.totals.add(new ArchiveListing.Total(path, total[0], total[1])));
+        listing.totals.sort(Comparator.comparingLong(ArchiveListing.Total::size).reversed());
+        listing.largest.addAll(largest);
+        listing.largest.sort(Comparator.comparingLong(ArchiveListing.Entry::size).reversed());
+        listing.archiveSize = trailer.archiveLength;
+        listing.compressionRatio = trailer.archiveLength > 0 ? (double) listing.uncompressedSize / trailer.archiveLength : 0;
+        return listing;
+    }
 
+    private static void printListing(ArchiveListing listing) {
+        System.out.println();
+        System.out.println("Entries:");
+        for (ArchiveListing.Entry entry : listing.entries) {
+            System.out.printf(Locale.ROOT, "  %s %12d  %s%n", entry.mode(), entry.size(), entry.path());
+        }
+        System.out.println();
+        System.out.println("Totals by top-level path:");
+        for (ArchiveListing.Total total : listing.totals) {
+            System.out.printf(Locale.ROOT, "  %12d bytes %8d file(s)  %s%n", total.size(), total.files(), total.path());
+        }
+        if (!listing.largest.isEmpty()) {
             System.out.println();
-            System.out.println("Exploded into:");
-            System.out.println("  " + stubOut.toAbsolutePath());
-            System.out.println("  " + archiveOut.toAbsolutePath());
-            System.out.println("  " + footerOut.toAbsolutePath());
+            System.out.println("Largest files:");
+            for (ArchiveListing.Entry entry : listing.largest) {
+                System.out.printf(Locale.ROOT, "  %12d  %s%n", entry.size(), entry.path());
+            }
+        }
+        System.out.println();
+        System.out.println("Files:             " + listing.files);
+        System.out.println("Directories:       " + listing.directories);
+        System.out.println("Content size:      " + listing.contentSize + " bytes");
+        System.out.println("Uncompressed size: " + listing.uncompressedSize + " bytes");
+        System.out.printf(Locale.ROOT, "Compression ratio: %.2f%n", listing.compressionRatio);
+    }
+
+    /** The mode of an entry as ls prints it, e.g. -rwxr-xr-x. */
+    private static String modeString(TarArchiveEntry entry) {
+        StringBuilder mode = new StringBuilder();
+        mode.append(entry.isDirectory() ? 'd' : entry.isSymbolicLink() ? 'l' : entry.isLink() ? 'h' : '-');
+        String permissions = "rwxrwxrwx";
+        for (int i = 0; i < 9; i++) {
+            mode.append((entry.getMode() & (1 << (8 - i))) != 0 ? permissions.charAt(i) : '-');
+        }
+        return mode.toString();
+    }
+
+    /**
+     * Searches backwards for pattern in the bytes of channel before end, reading it in chunks so
+     * binaries of any size can be searched without loading them into memory.
+     */
+    static long lastIndexOf(FileChannel channel, byte[] pattern, long end) throws IOException {
+        int chunkSize = 64 * 1024;
+        ByteBuffer buffer = ByteBuffer.allocate(chunkSize + pattern.length - 1);
+        long chunkEnd = end;
+        while (chunkEnd >= pattern.length) {
+            // Chunks overlap by pattern.length - 1 bytes so matches across chunk boundaries are found
+            long chunkStart = Math.max(0, chunkEnd - buffer.capacity());
+            buffer.clear().limit((int) (chunkEnd - chunkStart));
+            readFully(channel, buffer, chunkStart);
+            int index = lastIndexOf(buffer.array(), buffer.limit(), pattern);
+            if (index != -1) {
+                return chunkStart + index;
+            }
+            if (chunkStart == 0) {
+                break;
+            }
+            chunkEnd = chunkStart + pattern.length - 1;
         }
+        return -1;
     }
 
-    private static int lastIndexOf(byte[] data, byte[] pattern) {
-        if (pattern.length == 0 || data.length < pattern.length) {
+    private static int lastIndexOf(byte[] data, int length, byte[] pattern) {
+        if (pattern.length == 0 || length < pattern.length) {
             return -1;
         }
         outer:
-        for (int i = data.length - pattern.length; i >= 0; i--) {
+        for (int i = length - pattern.length; i >= 0; i--) {
             for (int j = 0; j < pattern.length; j++) {
                 if (data[i + j] != pattern[j]) {
                     continue outer;
@@ -5,6 +5,7 @@ import (
 	"bytes"
 	"compress/gzip"
 	"context"
+	"encoding/binary"
 	"encoding/json"
 	"errors"
 	"fmt"
@@ -12,11 +13,15 @@ import (
 	"log"
 	"os"
 	"os/exec"
+	"os/signal"
 	"path"
 	"path/filepath"
 	"regexp"
+	"runtime"
 	"strconv"
 	"strings"
+	"sync"
+	"syscall"
 	"time"
 )
 
@@ -26,30 +31,98 @@ func main() {
 		log.Fatalf("jpaxa stub: Failed to find executable: %v", err)
 	}
 
-	executable, err := os.ReadFile(executableFile)
+	executable, err := os.Open(executableFile)
 	if err != nil {
 		log.Fatalf("jpaxa stub: Failed to read executable: %v", err)
 	}
+	executableFileInfo, err := executable.Stat()
+	if err != nil {
+		log.Fatalf("jpaxa stub: Failed to read executable: %v", err)
+	}
+
+	var footerString []byte
+	// The archive is read again to repair an extraction, so every read gets a fresh reader.
+	var archive func() io.Reader
+	trailer, err := readTrailer(executable, executableFileInfo.Size())
+	if err != nil {
+		log.Fatalf("jpaxa stub: Failed to read trailer: %v", err)
+	}
+	if trailer != nil {
+		footerString = make([]byte, trailer.FooterLength)
+		if _, err := executable.ReadAt(footerString, trailer.FooterOffset); err != nil {
+			log.Fatalf("jpaxa stub: Failed to read footer: %v", err)
+		}
+		archive = func() io.Reader { return io.NewSectionReader(executable, trailer.ArchiveOffset, trailer.ArchiveLength) }
+	} else {
+		// No trailer, the binary was built by an older jpaxa: find the footer and the archive by their separators.
+		executableBytes, err := os.ReadFile(executableFile)
+		if err != nil {
+			log.Fatalf("jpaxa stub: Failed to read executable: %v", err)
+		}
+		footerSeparator := []byte("\n")
+		footerIndex := bytes.LastIndex(executableBytes, footerSeparator)
+		if footerIndex == -1 {
+			log.Fatalf("jpaxa stub: Failed to find footer (did you append an archive and a footer to the stub?)")
+		}
+		footerString = executableBytes[footerIndex+len(footerSeparator):]
 
-	footerSeparator := []byte("\n")
-	footerIndex := bytes.LastIndex(executable, footerSeparator)
-	if footerIndex == -1 {
-		log.Fatalf("jpaxa stub: Failed to find footer (did you append an archive and a footer to the stub?): %v", err)
+		// The use of ‘Repeat’ below is to make it even more improbable that the separator will appear literally in the compiled stub.
+		archiveSeparator := []byte("\n" + strings.Repeat("JPAXA", 3) + "\n")
+		// Use LastIndex to ensure we find the separator appended at the end of the stub,
+		// not an earlier accidental occurrence inside the compiled binary.
+		archiveIndex := bytes.LastIndex(executableBytes[:footerIndex], archiveSeparator)
+		if archiveIndex == -1 {
+			log.Fatalf("jpaxa stub: Failed to find archive (did you append the separator when building the stub?)")
+		}
+		archiveBytes := executableBytes[archiveIndex+len(archiveSeparator) : footerIndex]
+		archive = func() io.Reader { return bytes.NewReader(archiveBytes) }
 	}
-	footerString := executable[footerIndex+len(footerSeparator):]
+
 	var footer struct {
 		Identifier           string   `json:"identifier"`
 		Command              []string `json:"command"`
 		UncompressionMessage string   `json:"uncompressionMessage"`
+		Compression          string   `json:"compression"`
+		Integrity            *struct {
+			Offset int64 `json:"offset"`
+			Length int64 `json:"length"`
+		} `json:"integrity"`
+		ValidateCache bool    `json:"validateCache"`
+		Chunks        []chunk `json:"chunks"`
+		HotChunks     int     `json:"hotChunks"`
+		JavaCds       string  `json:"javaCds"`
 	}
 	if err := json.Unmarshal(footerString, &footer); err != nil {
 		log.Fatalf("jpaxa stub: Failed to parse JSON in footer: %v", err)
 	}
 
+	// The integrity manifest lists every extracted path, it's only read to check or repair an extraction.
+	readManifest := func() ([]integrityEntry, error) {
+		if footer.Integrity == nil {
+			return nil, errors.New("no integrity manifest")
+		}
+		return readIntegrity(io.NewSectionReader(executable, footer.Integrity.Offset, footer.Integrity.Length))
+	}
+
 	var applicationDirectory string
+	// Set when the command starts before the extraction is complete, see hotChunks below.
+	waitForExtraction := func() {}
+	var lease string
+	leaseName := fmt.Sprintf("%d-%d", os.Getpid(), time.Now().UnixNano())
 	for extractionAttempt := 0; true; extractionAttempt++ {
 		lock := path.Join(os.TempDir(), "jpaxa/locks", footer.Identifier, strconv.Itoa(extractionAttempt))
 		applicationDirectory = path.Join(os.TempDir(), "jpaxa/applications", footer.Identifier, strconv.Itoa(extractionAttempt))
+		// Lease the attempt before looking at it and for as long as the command runs from it: `jpaxa cache gc` doesn’t evict a leased directory, and puts back one leased while it was moving it away.
+		if lease != "" {
+			os.Remove(lease)
+		}
+		lease = path.Join(os.TempDir(), "jpaxa/leases", footer.Identifier, strconv.Itoa(extractionAttempt), leaseName)
+		if err := os.MkdirAll(path.Dir(lease), 0755); err != nil {
+			log.Fatalf("jpaxa stub: Failed to create the lease directory: %v", err)
+		}
+		if err := os.WriteFile(lease, nil, 0644); err != nil {
+			log.Fatalf("jpaxa stub: Failed to lease the application directory: %v", err)
+		}
 		applicationDirectoryFileInfo, err := os.Stat(applicationDirectory)
 		if err != nil && !errors.Is(err, os.ErrNotExist) {
 			log.Fatalf("jpaxa stub: Failed to find information about the application directory: %v", err)
@@ -66,11 +139,46 @@ func main() {
 				log.Fatalf("jpaxa stub: Path to lock already exists and isn’t a directory: %v", err)
 			}
 			if err == nil && lockFileInfo.IsDir() {
+				// An extraction touches its lock while it runs, so a lock that wasn’t touched for a while was left by an extraction that died. With the integrity manifest, complete it by extracting only what is missing or damaged. Creating the repair directory is atomic, so a single launcher does it.
+				if footer.Integrity != nil && time.Since(lockFileInfo.ModTime()) > staleLock && os.Mkdir(filepath.Join(lock, "repair"), 0755) == nil {
+					if err := repair(applicationDirectory, lock, archive(), footer.Compression, readManifest); err != nil {
+						log.Fatalf("jpaxa stub: Failed to repair the application directory: %v", err)
+					}
+					os.RemoveAll(lock)
+					break
+				}
+				// The extraction is finishing the cold chunks in the background while its command runs: the files needed at startup are there. Trusted only while the lock is touched: an extraction that died leaves the marker behind next to the files it didn’t get to.
+				if _, err := os.Stat(filepath.Join(lock, "hot")); err == nil && time.Since(lockFileInfo.ModTime()) < staleLock {
+					break
+				}
 				// Application directory exists and lock exists as well, so a previous extraction wasn’t successful or an extraction is happening right now and hasn’t finished yet, in either case, start over with a fresh name.
 				continue
 			}
 			if err != nil && errors.Is(err, os.ErrNotExist) {
 				// Application directory exists and lock doesn’t exist, so a previous extraction was successful. Use the cached version of the application directory and don’t extract again.
+				if footer.ValidateCache && footer.Integrity != nil {
+					// Unless files were removed since, e.g. by a temporary files cleaner: extract those again under the lock.
+					entries, err := readManifest()
+					if err != nil {
+						log.Fatalf("jpaxa stub: Failed to read the integrity manifest: %v", err)
+					}
+					if damaged := damagedEntries(applicationDirectory, entries); len(damaged) > 0 {
+						if err := os.MkdirAll(filepath.Dir(lock), 0755); err != nil {
+							log.Fatalf("jpaxa stub: Failed to create the lock directory: %v", err)
+						}
+						if err := os.Mkdir(lock, 0755); err != nil {
+							// Another launcher is repairing it
+							continue
+						}
+						stopHeartbeat := heartbeat(lock)
+						err := Untar(archive(), applicationDirectory, footer.Compression, damaged)
+						stopHeartbeat()
+						if err != nil {
+							log.Fatalf("jpaxa stub: Failed to repair the application directory: %v", err)
+						}
+						os.Remove(lock)
+					}
+				}
 				break
 			}
 		}
@@ -97,19 +205,40 @@ func main() {
 				log.Fatalf("jpaxa stub: Failed to create the lock directory: %v", err)
 			}
 
-			// The use of ‘Repeat’ below is to make it even more improbable that the separator will appear literally in the compiled stub.
-			archiveSeparator := []byte("\n" + strings.Repeat("JPAXA", 3) + "\n")
-			// Use LastIndex to ensure we find the separator appended at the end of the stub,
-			// not an earlier accidental occurrence inside the compiled binary.
-			archiveIndex := bytes.LastIndex(executable, archiveSeparator)
-			if archiveIndex == -1 {
-				log.Fatalf("jpaxa stub: Failed to find archive (did you append the separator when building the stub?): %v", err)
+			stopHeartbeat := heartbeat(lock)
+			if hot := footer.HotChunks; len(footer.Chunks) > 0 && trailer != nil && hot > 0 && hot < len(footer.Chunks) {
+				// Built with a startup profile: extract the hot chunks, holding the files read at startup, then start the command and extract the cold ones meanwhile. The hot marker tells other launchers the directory is usable, the lock is removed once everything is extracted.
+				if err := untarChunks(executable, trailer.ArchiveOffset, trailer.ArchiveLength, footer.Chunks[:hot], applicationDirectory, footer.Compression); err != nil {
+					log.Fatalf("jpaxa stub: Failed to uncompress archive: %v", err)
+				}
+				if err := os.WriteFile(filepath.Join(lock, "hot"), nil, 0644); err != nil {
+					log.Fatalf("jpaxa stub: Failed to mark the startup files extracted: %v", err)
+				}
+				cold := make(chan error, 1)
+				go func() {
+					cold <- untarChunks(executable, trailer.ArchiveOffset, trailer.ArchiveLength, footer.Chunks[hot:], applicationDirectory, footer.Compression)
+				}()
+				waitForExtraction = func() {
+					err := <-cold
+					stopHeartbeat()
+					if err != nil {
+						// The lock stays and stops being touched, so the next launch repairs the directory.
+						fmt.Fprintf(os.Stderr, "jpaxa stub: Failed to uncompress archive: %v\n", err)
+						return
+					}
+					os.RemoveAll(lock)
+				}
+				cancelCtx()
+				break
 			}
-			archive := executable[archiveIndex+len(archiveSeparator) : footerIndex]
-
-			if err := Untar(bytes.NewReader(archive), applicationDirectory); err != nil {
+			if len(footer.Chunks) > 0 && trailer != nil {
+				if err := untarChunks(executable, trailer.ArchiveOffset, trailer.ArchiveLength, footer.Chunks, applicationDirectory, footer.Compression); err != nil {
+					log.Fatalf("jpaxa stub: Failed to uncompress archive: %v", err)
+				}
+			} else if err := Untar(archive(), applicationDirectory, footer.Compression, nil); err != nil {
 				log.Fatalf("jpaxa stub: Failed to uncompress archive: %v", err)
 			}
+			stopHeartbeat()
 
 			os.Remove(lock)
 
@@ -118,17 +247,59 @@ func main() {
 		}
 	}
 
+	stopLease := heartbeat(lease)
+
+	// Record the use so `jpaxa cache gc` evicts the least recently used applications first
+	now := time.Now()
+	os.Chtimes(applicationDirectory, now, now)
+
 	expandedCommand := make([]string, len(footer.Command))
 	applicationDirectoryPlaceholderRegexp := regexp.MustCompile(`\{\{\s*app\s*\}\}`)
+	// Built with --java-cds: map the class data sharing archive once a run created it, until then have the JVM dump one when it exits. The dump is renamed into place only after a normal exit, as a JVM maps a truncated archive and crashes.
+	javaCdsArchive := applicationDirectoryPlaceholderRegexp.ReplaceAllLiteralString(footer.JavaCds, applicationDirectory)
+	javaCdsOption := ""
+	javaCdsDump := ""
+	if footer.JavaCds != "" {
+		if _, err := os.Stat(javaCdsArchive); err == nil {
+			javaCdsOption = "-XX:SharedArchiveFile=" + javaCdsArchive
+		} else {
+			javaCdsDump = fmt.Sprintf("%s.%d.partial", javaCdsArchive, os.Getpid())
+			javaCdsOption = "-XX:ArchiveClassesAtExit=" + javaCdsDump
+		}
+	}
+	javaCdsPlaceholderRegexp := regexp.MustCompile(`\{\{\s*cds\s*\}\}`)
 	for key, commandPart := range footer.Command {
 		expandedCommand[key] = applicationDirectoryPlaceholderRegexp.ReplaceAllLiteralString(commandPart, applicationDirectory)
+		expandedCommand[key] = javaCdsPlaceholderRegexp.ReplaceAllLiteralString(expandedCommand[key], javaCdsOption)
 	}
 
 	command := exec.Command(expandedCommand[0], append(expandedCommand[1:], os.Args[1:]...)...)
 	command.Stdin = os.Stdin
 	command.Stdout = os.Stdout
 	command.Stderr = os.Stderr
-	err = command.Run()
+	// Ctrl-C reaches the whole process group: the command handles it, and the launcher stays to finish the cold chunks and its cleanup, rather than leave a fresh hot marker next to missing files. A termination sent to the launcher alone is passed on to the command.
+	signals := make(chan os.Signal, 1)
+	signal.Notify(signals, os.Interrupt, syscall.SIGTERM)
+	err = command.Start()
+	if err == nil {
+		go func() {
+			for received := range signals {
+				if received != os.Interrupt {
+					command.Process.Signal(received)
+				}
+			}
+		}()
+		err = command.Wait()
+	}
+	if javaCdsDump != "" {
+		if command.ProcessState == nil || !command.ProcessState.Exited() || os.Rename(javaCdsDump, javaCdsArchive) != nil {
+			os.Remove(javaCdsDump)
+		}
+	}
+	// The command may exit before the cold chunks are extracted, finish them so the cache is complete.
+	waitForExtraction()
+	stopLease()
+	os.Remove(lease)
 	var exitError *exec.ExitError
 	if errors.As(err, &exitError) {
 		os.Exit(exitError.ExitCode())
@@ -137,6 +308,192 @@ func main() {
 	}
 }
 
+// The trailer is a fixed-size record at the very end of the binary, so the footer and the archive can be
+// read at known offsets instead of loading the whole binary and searching for separators. Big-endian:
+// stub length, archive offset, archive length, footer offset and footer length as 64-bit integers,
+// then a 32-bit version and the magic.
+const trailerVersion = 1
+const trailerSize = 5*8 + 4 + 8
+
+var trailerMagic = []byte("JPAXATRL")
+
+type trailerInfo struct {
+	StubLength    int64
+	ArchiveOffset int64
+	ArchiveLength int64
+	FooterOffset  int64
+	FooterLength  int64
+}
+
+// readTrailer returns nil without an error for binaries that predate the trailer.
+func readTrailer(file *os.File, size int64) (*trailerInfo, error) {
+	if size < trailerSize {
+		return nil, nil
+	}
+	buffer := make([]byte, trailerSize)
+	if _, err := file.ReadAt(buffer, size-trailerSize); err != nil {
+		return nil, err
+	}
+	if !bytes.Equal(buffer[trailerSize-len(trailerMagic):], trailerMagic) {
+		return nil, nil
+	}
+	if version := binary.BigEndian.Uint32(buffer[40:44]); version > trailerVersion {
+		return nil, fmt.Errorf("unsupported trailer version %d, the binary was built by a newer jpaxa", version)
+	}
+	trailer := &trailerInfo{
+		StubLength:    int64(binary.BigEndian.Uint64(buffer[0:8])),
+		ArchiveOffset: int64(binary.BigEndian.Uint64(buffer[8:16])),
+		ArchiveLength: int64(binary.BigEndian.Uint64(buffer[16:24])),
+		FooterOffset:  int64(binary.BigEndian.Uint64(buffer[24:32])),
+		FooterLength:  int64(binary.BigEndian.Uint64(buffer[32:40])),
+	}
+	if trailer.ArchiveOffset < 0 || trailer.ArchiveLength < 0 || trailer.FooterLength < 0 ||
+		trailer.ArchiveOffset+trailer.ArchiveLength > trailer.FooterOffset ||
+		trailer.FooterOffset+trailer.FooterLength > size-trailerSize {
+		return nil, errors.New("inconsistent trailer offsets")
+	}
+	return trailer, nil
+}
+
+// An extraction touches its lock every lockHeartbeat, a lock untouched for staleLock was abandoned.
+const lockHeartbeat = 10 * time.Second
+const staleLock = time.Minute
+
+// heartbeat touches lock until the returned function is called, so a long extraction isn’t taken for an abandoned one.
+func heartbeat(lock string) func() {
+	done := make(chan struct{})
+	go func() {
+		ticker := time.NewTicker(lockHeartbeat)
+		defer ticker.Stop()
+		for {
+			select {
+			case <-ticker.C:
+				now := time.Now()
+				os.Chtimes(lock, now, now)
+			case <-done:
+				return
+			}
+		}
+	}()
+	return func() { close(done) }
+}
+
+// integrityEntry is a path as the archive creates it, from the manifest `jpaxa build` stores after the archive.
+type integrityEntry struct {
+	Path string `json:"path"`
+	Type string `json:"type"`
+	Size int64  `json:"size"`
+	Link string `json:"link"`
+}
+
+// readIntegrity decodes the integrity manifest, a gzip-compressed JSON array.
+func readIntegrity(r io.Reader) ([]integrityEntry, error) {
+	zr, err := gzip.NewReader(r)
+	if err != nil {
+		return nil, err
+	}
+	defer zr.Close()
+	var entries []integrityEntry
+	if err := json.NewDecoder(zr).Decode(&entries); err != nil {
+		return nil, err
+	}
+	return entries, nil
+}
+
+// damagedEntries returns the entries missing from dir or with the wrong type, size or symlink target. Only file
+// attributes are read, which is cheap enough for every start and catches files cut short by an interrupted extraction.
+func damagedEntries(dir string, entries []integrityEntry) map[string]bool {
+	damaged := map[string]bool{}
+	for _, entry := range entries {
+		if !validRelPath(entry.Path) {
+			damaged[entry.Path] = true
+			continue
+		}
+		abs := filepath.Join(dir, filepath.FromSlash(entry.Path))
+		fi, err := os.Lstat(abs)
+		if err != nil {
+			damaged[entry.Path] = true
+			continue
+		}
+		switch entry.Type {
+		case "directory":
+			if !fi.IsDir() {
+				damaged[entry.Path] = true
+			}
+		case "symlink":
+			if target, err := os.Readlink(abs); err != nil || filepath.ToSlash(target) != entry.Link {
+				damaged[entry.Path] = true
+			}
+		default:
+			if !fi.Mode().IsRegular() || fi.Size() != entry.Size {
+				damaged[entry.Path] = true
+			}
+		}
+	}
+	return damaged
+}
+
+// repair extracts again what is missing or damaged in dir, keeping lock fresh meanwhile.
+func repair(dir string, lock string, r io.Reader, compression string, readManifest func() ([]integrityEntry, error)) error {
+	entries, err := readManifest()
+	if err != nil {
+		return err
+	}
+	damaged := damagedEntries(dir, entries)
+	if len(damaged) == 0 {
+		return nil
+	}
+	stopHeartbeat := heartbeat(lock)
+	defer stopHeartbeat()
+	return Untar(r, dir, compression, damaged)
+}
+
+// chunk is an independently compressed part of an archive built with `--layout chunked`, from the footer’s chunk
+// index. The offset is from the start of the archive.
+type chunk struct {
+	Offset int64 `json:"offset"`
+	Length int64 `json:"length"`
+}
+
+// untarChunks extracts the chunks of a chunked archive on all cores. Chunks are split between entries and hold no
+// end of archive records, so each one is a tar stream of its own; directories are created by whichever chunk needs
+// them first.
+func untarChunks(r io.ReaderAt, archiveOffset int64, archiveLength int64, chunks []chunk, dir string, compression string) error {
+	for _, c := range chunks {
+		if c.Offset < 0 || c.Length < 0 || c.Offset+c.Length > archiveLength {
+			return fmt.Errorf("chunk out of the bounds of the archive: %+v", c)
+		}
+	}
+	workers := runtime.NumCPU()
+	if workers > len(chunks) {
+		workers = len(chunks)
+	}
+	jobs := make(chan chunk)
+	errs := make(chan error, len(chunks))
+	var wg sync.WaitGroup
+	for i := 0; i < workers; i++ {
+		wg.Add(1)
+		go func() {
+			defer wg.Done()
+			for c := range jobs {
+				errs <- Untar(io.NewSectionReader(r, archiveOffset+c.Offset, c.Length), dir, compression, nil)
+			}
+		}()
+	}
+	for _, c := range chunks {
+		jobs <- c
+	}
+	close(jobs)
+	wg.Wait()
+	close(errs)
+	for err := range errs {
+		if err != nil {
+			return err
+		}
+	}
+	return nil
+}
+
 // Adapted from https://github.com/golang/build/blob/db2c93053bcd6b944723c262828c90af91b0477a/internal/untar/untar.go and https://github.com/mholt/archiver/tree/v3.5.0
 
 // Copyright 2017 The Go Authors. All rights reserved.
@@ -164,12 +521,29 @@ func main() {
 // forked for now.  Unfork and add some opts arguments here, so the
 // buildlet can use this code somehow.
 
-// Untar reads the gzip-compressed tar file from r and writes it into dir.
-func Untar(r io.Reader, dir string) error {
-	return untar(r, dir)
+// Untar reads the tar file compressed with the given codec from r and writes it into dir. When only isn’t nil, only
+// the entries it names are written.
+func Untar(r io.Reader, dir string, compression string, only map[string]bool) error {
+	return untar(r, dir, compression, only)
+}
+
+// decompress wraps r in a decoder for the codec recorded in the footer. jpaxa only builds binaries with the codecs of the standard library, zstd and xz are for the shell stub.
+func decompress(r io.Reader, compression string) (io.ReadCloser, error) {
+	switch compression {
+	case "gzip":
+		zr, err := gzip.NewReader(r)
+		if err != nil {
+			return nil, err
+		}
+		return zr, nil
+	case "none":
+		return io.NopCloser(r), nil
+	default:
+		return nil, fmt.Errorf("unsupported compression %q", compression)
+	}
 }
 
-func untar(r io.Reader, dir string) (err error) {
+func untar(r io.Reader, dir string, compression string, only map[string]bool) (err error) {
 	t0 := time.Now()
 	nFiles := 0
 	madeDir := map[string]bool{}
@@ -181,10 +555,19 @@ func untar(r io.Reader, dir string) (err error) {
 	// 		log.Printf("error extracting tarball into %s after %d files, %d dirs, %v: %v", dir, nFiles, len(madeDir), td, err)
 	// 	}
 	// }()
-	zr, err := gzip.NewReader(r)
+	if compression == "" {
+		// The binary predates the codec in the footer
+		compression = "gzip"
+	}
+	zr, err := decompress(r, compression)
 	if err != nil {
-		return fmt.Errorf("requires gzip-compressed body: %v", err)
+		return fmt.Errorf("requires %s-compressed body: %v", compression, err)
 	}
+	defer func() {
+		if closeErr := zr.Close(); closeErr != nil && err == nil {
+			err = closeErr
+		}
+	}()
 	tr := tar.NewReader(zr)
 	loggedChtimesError := false
 	for {
@@ -199,12 +582,39 @@ func untar(r io.Reader, dir string) (err error) {
 		if !validRelPath(f.Name) {
 			return fmt.Errorf("tar contained invalid name error %q", f.Name)
 		}
+		if only != nil && !only[strings.TrimSuffix(f.Name, "/")] {
+			continue
+		}
 		rel := filepath.FromSlash(f.Name)
 		abs := filepath.Join(dir, rel)
 
 		fi := f.FileInfo()
 		mode := fi.Mode()
 		switch {
+		case f.Typeflag == tar.TypeLink:
+			// Written by `jpaxa build --dedup` for files identical to an earlier one, which is extracted already.
+			// Checked before regular files, as hard links report a regular file mode.
+			if !validRelPath(f.Linkname) {
+				return fmt.Errorf("tar contained invalid link name %q for %q", f.Linkname, f.Name)
+			}
+			original := filepath.Join(dir, filepath.FromSlash(f.Linkname))
+			if err := os.MkdirAll(filepath.Dir(abs), 0755); err != nil {
+				return err
+			}
+			partial := partialPath(abs)
+			os.Remove(partial)
+			if err := os.Link(original, partial); err != nil {
+				// The file system doesn't support hard links, fall back to a copy
+				if err := copyFile(original, partial, mode.Perm()); err != nil {
+					os.Remove(partial)
+					return fmt.Errorf("%s: making hard link to %s: %v", abs, original, err)
+				}
+			}
+			if err := os.Rename(partial, abs); err != nil {
+				os.Remove(partial)
+				return err
+			}
+			nFiles++
 		case mode.IsRegular():
 			// Make the directory. This is redundant because it should
 			// already be made by a directory entry in the tar
@@ -217,7 +627,9 @@ func untar(r io.Reader, dir string) (err error) {
 				}
 				madeDir[dir] = true
 			}
-			wf, err := os.OpenFile(abs, os.O_RDWR|os.O_CREATE|os.O_TRUNC, mode.Perm())
+			// Written under another name and renamed once complete, so a command started after the hot chunks, or running from a directory being repaired, never reads a partially written file.
+			partial := partialPath(abs)
+			wf, err := os.OpenFile(partial, os.O_RDWR|os.O_CREATE|os.O_TRUNC, mode.Perm())
 			if err != nil {
 				return err
 			}
@@ -226,9 +638,11 @@ func untar(r io.Reader, dir string) (err error) {
 				err = closeErr
 			}
 			if err != nil {
+				os.Remove(partial)
 				return fmt.Errorf("error writing to %s: %v", abs, err)
 			}
 			if n != f.Size {
+				os.Remove(partial)
 				return fmt.Errorf("only wrote %d bytes to %s; expected %d", n, abs, f.Size)
 			}
 			modTime := f.ModTime
@@ -240,7 +654,7 @@ func untar(r io.Reader, dir string) (err error) {
 				modTime = t0
 			}
 			if !modTime.IsZero() {
-				if err := os.Chtimes(abs, modTime, modTime); err != nil && !loggedChtimesError {
+				if err := os.Chtimes(partial, modTime, modTime); err != nil && !loggedChtimesError {
 					// benign error. Gerrit doesn't even set the
 					// modtime in these, and we don't end up relying
 					// on it anywhere (the gomote push command relies
@@ -250,6 +664,10 @@ func untar(r io.Reader, dir string) (err error) {
 					loggedChtimesError = true // once is enough
 				}
 			}
+			if err := os.Rename(partial, abs); err != nil {
+				os.Remove(partial)
+				return err
+			}
 			nFiles++
 		case mode.IsDir():
 			if err := os.MkdirAll(abs, 0755); err != nil {
@@ -281,6 +699,28 @@ func untar(r io.Reader, dir string) (err error) {
 	return nil
 }
 
+// partialPath is where untar writes target before renaming it into place, unique to the launcher.
+func partialPath(target string) string {
+	return filepath.Join(filepath.Dir(target), fmt.Sprintf(".%s.%d.partial", filepath.Base(target), os.Getpid()))
+}
+
+func copyFile(source string, target string, perm os.FileMode) error {
+	in, err := os.Open(source)
+	if err != nil {
+		return err
+	}
+	defer in.Close()
+	out, err := os.OpenFile(target, os.O_RDWR|os.O_CREATE|os.O_TRUNC, perm)
+	if err != nil {
+		return err
+	}
+	_, err = io.Copy(out, in)
+	if closeErr := out.Close(); closeErr != nil && err == nil {
+		err = closeErr
+	}
+	return err
+}
+
 func validRelativeDir(dir string) bool {
 	if strings.Contains(dir, `\`) || path.IsAbs(dir) {
 		return false